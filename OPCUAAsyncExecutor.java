@@ -0,0 +1,133 @@
+/* Runs the asynchronous requests of an OPC-UA connection manager.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUAAsyncExecutor.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Executes the blocking framework calls behind the CompletableFuture
+ *  API of the manager, with at most maxConcurrency calls in progress.
+ *  <p>
+ *  "Bounded" uses a pool of maxConcurrency daemon threads. Its queue
+ *  holds up to 64 tasks per thread; beyond that the caller runs the task
+ *  itself, which slows down the actors submitting too fast.
+ *  <p>
+ *  "Virtual" (Java 21 and later) runs each call on its own virtual
+ *  thread, so blocked calls hold no platform thread; a semaphore keeps
+ *  the number of calls in progress below maxConcurrency. The executor is
+ *  obtained by reflection, as this code is built for Java 8; on older
+ *  JVMs the bounded pool is used instead.
+ */
+class OPCUAAsyncExecutor
+{
+    private static final int QUEUE_PER_THREAD = 64;
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+
+    /** Create an executor.
+     *  @param maxConcurrency The maximum number of calls in progress.
+     *  @param virtual True to use virtual threads, if the JVM has them.
+     *  @param sName The name of the threads.
+     */
+    OPCUAAsyncExecutor(int maxConcurrency, boolean virtual, String sName)
+    {
+        ExecutorService virtualExecutor = virtual ? newVirtualExecutor() : null;
+        if (virtualExecutor != null) {
+            executor = virtualExecutor;
+            permits = new Semaphore(maxConcurrency);
+        } else {
+            if (virtual) {
+                System.out.println("OPCUAAsyncExecutor: Virtual threads not supported by this JVM, using "
+                        + maxConcurrency + " platform threads.");
+            }
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency,
+                    60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxConcurrency * QUEUE_PER_THREAD),
+                    r -> {
+                        Thread thread = new Thread(r, sName);
+                        thread.setDaemon(true);
+                        return thread;
+                    },
+                    (r, full) -> {
+                        if (full.isShutdown()) {
+                            throw new RejectedExecutionException("Executor shut down.");
+                        }
+                        r.run();
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+            permits = null;
+        }
+    }
+
+    /** Run a call asynchronously.
+     *  @param call The call.
+     *  @return A future completed with the result of the call, or
+     *   exceptionally with the exception it threw.
+     */
+    <T> CompletableFuture<T> submit(Callable<T> call)
+    {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        Runnable task = () -> {
+            try {
+                if (permits != null) {
+                    permits.acquire();
+                }
+                try {
+                    future.complete(call.call());
+                } finally {
+                    if (permits != null) {
+                        permits.release();
+                    }
+                }
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /** Stop accepting calls, and wait (at most 10 seconds) for the calls
+     *  already submitted to complete.
+     */
+    void shutdown()
+    {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                System.out.println("OPCUAAsyncExecutor::shutdown: Calls still in progress after 10 s.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ExecutorService newVirtualExecutor()
+    {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
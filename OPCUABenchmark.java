@@ -0,0 +1,578 @@
+/* Benchmarks of the OPC-UA manager and actors against an in-process server.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUABenchmark.java ./OPCUATestServer.java
+
+ run with: java -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" ptolemy.actor.lib.OPCUABenchmark [options]
+   -endpoint url     Benchmark an existing server instead of the in-process one.
+   -tags 1,100,...   Numbers of tags (default 1,10,100,1000,10000).
+   -threads 1,4,...  Numbers of concurrent callers / actors (default 1,4,16,64).
+   -seconds n        Measured time per case (default 5).
+   -warmup n         Warm-up time per case, not measured (default 2).
+   -stress n         Instead of benchmarking, run the contention checks for n seconds
+                     (exit code 1 if any check fails).
+   -history n        Instead of benchmarking, replay the history of a tag with pages of n
+                     values (exit code 1 if any check fails). The server must be an
+                     OPCUATestServer, whose history values are known.
+ Exits with code 2 if an option is unknown or its value is missing or invalid, and with
+ code 1, after printing it, if the run throws an exception.
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a tool, it is not an actor and must not be included in the
+ "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+
+import itaipu.gss.framework.OPCUA.AccessLevel;
+import itaipu.gss.framework.OPCUA.DataType;
+import itaipu.gss.framework.OPCUA.OPCUANode;
+import ptolemy.actor.Manager;
+import ptolemy.actor.TypedIOPort;
+import ptolemy.actor.TypedCompositeActor;
+import ptolemy.data.expr.Variable;
+import ptolemy.domains.sdf.kernel.SDFDirector;
+import ptolemy.kernel.util.NamedObj;
+
+/** Measures the throughput and latency percentiles of:
+ *  <ul>
+ *  <li>OPCUAConnectionManager.readOpcValue() and writeOpcValue(), called
+ *      by 1 to 64 threads, over 1 to 10k tags;</li>
+ *  <li>OPCUAConnectionManager.readOpcNodes() of all tags, in batches;</li>
+ *  <li>OPCUAConnectionManager.browseOpcNodes(), from the index and after
+ *      a refresh;</li>
+ *  <li>one iteration of an SDF model with N OPCUARead and N OPCUAWrite
+ *      actors (N = 1 to 64), i.e. the full fire() path of the actors.</li>
+ *  </ul>
+ *  With -stress, the manager is instead checked under contention: threads
+ *  write and read back their own tag, synchronously and asynchronously,
+ *  while another thread keeps reconnecting the session. Only requests the
+ *  manager refused to send because the session had no connected client
+ *  (OPCUANotConnectedException) are tolerated: any other exception, i.e. a
+ *  request dropped or failed during a swap, or a value read back different
+ *  from the one written, fails the check. Another thread holds client
+ *  handles across swaps and checks that calls started on the old client
+ *  still complete on it.
+ *  <p>
+ *  With -history, the history of a tag is replayed through
+ *  OPCUAHistoryPager instead: a window of several pages and a partial one,
+ *  whose times and values must be those of the OPCUATestServer history,
+ *  then the same window closed in the middle of a page. With the
+ *  in-process server, no continuation point may be left open on it after
+ *  either replay, i.e. the pages were followed and close() released the
+ *  point it held.
+ *  <p>
+ *  Unless an endpoint is given, an OPCUATestServer with the largest number
+ *  of tags is started in the same process. The numbers are meant to be
+ *  compared between two builds on the same machine, not as absolute values.
+ */
+class OPCUABenchmark
+{
+    /** One call of a benchmarked operation. */
+    private interface Operation
+    {
+        void run(int thread, long iteration) throws Exception;
+    }
+
+    /** The latencies measured by one thread. At most MAX_SAMPLES are kept;
+     *  the operations count includes all calls.
+     */
+    private static final class Samples
+    {
+        static final int MAX_SAMPLES = 1 << 20;
+        long[] nanos = new long[1024];
+        int size = 0;
+        long operations = 0;
+        Exception error = null;
+
+        void add(long latency)
+        {
+            operations++;
+            if (size == nanos.length && size < MAX_SAMPLES) {
+                nanos = Arrays.copyOf(nanos, Math.min(size * 2, MAX_SAMPLES));
+            }
+            if (size < nanos.length) {
+                nanos[size++] = latency;
+            }
+        }
+    }
+
+    private final String sEndpointUrl;
+    private final int[] tagCounts;
+    private final int[] threadCounts;
+    private final long measureNanos;
+    private final long warmupNanos;
+
+    private OPCUABenchmark(String sEndpointUrl, int[] tagCounts, int[] threadCounts, double seconds, double warmup)
+    {
+        this.sEndpointUrl = sEndpointUrl;
+        this.tagCounts = tagCounts;
+        this.threadCounts = threadCounts;
+        this.measureNanos = (long) (seconds * 1e9);
+        this.warmupNanos = (long) (warmup * 1e9);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String sEndpoint = null;
+        int[] tags = {1, 10, 100, 1000, 10000};
+        int[] threads = {1, 4, 16, 64};
+        double seconds = 5.0;
+        double warmup = 2.0;
+        double stress = 0.0;
+        int historyPageSize = 0;
+        if (args.length % 2 != 0) {
+            System.out.println("OPCUABenchmark: Option " + args[args.length - 1] + " has no value");
+            System.exit(2);
+        }
+        int i = 0;
+        try {
+            for (; i < args.length; i += 2) {
+                switch (args[i]) {
+                  case "-endpoint":
+                    sEndpoint = args[i + 1];
+                    break;
+                  case "-tags":
+                    tags = parseList(args[i + 1]);
+                    break;
+                  case "-threads":
+                    threads = parseList(args[i + 1]);
+                    break;
+                  case "-seconds":
+                    seconds = Double.parseDouble(args[i + 1]);
+                    break;
+                  case "-warmup":
+                    warmup = Double.parseDouble(args[i + 1]);
+                    break;
+                  case "-stress":
+                    stress = Double.parseDouble(args[i + 1]);
+                    break;
+                  case "-history":
+                    historyPageSize = Math.max(2, Integer.parseInt(args[i + 1]));
+                    break;
+                  default:
+                    System.out.println("OPCUABenchmark: Unknown option " + args[i]);
+                    System.exit(2);
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("OPCUABenchmark: Invalid value " + args[i + 1] + " of option " + args[i]);
+            System.exit(2);
+        }
+
+        OPCUATestServer testServer = null;
+        if (sEndpoint == null) {
+            int maxTags = 0;
+            for (int count : tags) {
+                maxTags = Math.max(maxTags, count);
+            }
+            testServer = new OPCUATestServer(12686, maxTags);
+            testServer.start();
+            sEndpoint = testServer.getEndpointUrl();
+        }
+        boolean passed = true;
+        try {
+            if (stress > 0.0) {
+                passed = new OPCUABenchmark(sEndpoint, tags, threads, stress, 0.0).stress();
+            } else if (historyPageSize > 0) {
+                passed = new OPCUABenchmark(sEndpoint, tags, threads, 0.0, 0.0).history(historyPageSize, testServer);
+            } else {
+                new OPCUABenchmark(sEndpoint, tags, threads, seconds, warmup).run();
+            }
+        } catch (Throwable e) {
+            // Reported here: the test server threads would keep the JVM
+            // running if main ended with an exception.
+            e.printStackTrace();
+            passed = false;
+        } finally {
+            if (testServer != null) {
+                testServer.stop();
+            }
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static int[] parseList(String sList)
+    {
+        String[] parts = sList.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    private void run() throws Exception
+    {
+        System.out.println(String.format("%-24s %6s %7s %12s %10s %10s %10s %10s %10s",
+                "case", "tags", "threads", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us"));
+
+        TypedCompositeActor top = new TypedCompositeActor();
+        top.setName("benchmark");
+        OPCUAConnectionManager manager = createManager(top);
+
+        for (final int tagCount : tagCounts) {
+            final String[] names = new String[tagCount];
+            final OPCUANode[] nodes = new OPCUANode[tagCount];
+            for (int i = 0; i < tagCount; i++) {
+                names[i] = OPCUATestServer.tagName(i);
+                nodes[i] = new OPCUANode(names[i], DataType.Analog);
+            }
+
+            for (final int threadCount : threadCounts) {
+                measure("readOpcValue", tagCount, threadCount, (thread, iteration) ->
+                        manager.readOpcValue(names[(int) ((iteration * threadCount + thread) % tagCount)], DataType.Analog));
+                measure("writeOpcValue", tagCount, threadCount, (thread, iteration) ->
+                        manager.writeOpcValue(names[(int) ((iteration * threadCount + thread) % tagCount)], DataType.Analog, iteration));
+            }
+
+            measure("readOpcNodes(all)", tagCount, 1, (thread, iteration) -> manager.readOpcNodes(nodes));
+            final String sFilter = tagCount > 1 ? "TAG0*" : names[0];
+            measure("browseOpcNodes(index)", tagCount, 1, (thread, iteration) ->
+                    manager.browseOpcNodes(AccessLevel.READ_ONLY, sFilter));
+            measure("browseOpcNodes(server)", tagCount, 1, (thread, iteration) -> {
+                manager.refreshNodeIndex();
+                manager.browseOpcNodes(AccessLevel.READ_ONLY, sFilter);
+            });
+
+            for (int actorCount : threadCounts) {
+                measureModel(tagCount, actorCount);
+            }
+        }
+        manager.setContainer(null);
+    }
+
+    /** Hammer one manager from as many threads as the largest -threads
+     *  value while the session is reconnected every 20 ms.
+     *  @return True if no check failed.
+     */
+    private boolean stress() throws Exception
+    {
+        int threadCount = 0;
+        for (int count : threadCounts) {
+            threadCount = Math.max(threadCount, count);
+        }
+        int tagCount = 0;
+        for (int count : tagCounts) {
+            tagCount = Math.max(tagCount, count);
+        }
+        threadCount = Math.min(threadCount, tagCount);
+
+        TypedCompositeActor top = new TypedCompositeActor();
+        top.setName("stress");
+        final OPCUAConnectionManager manager = createManager(top);
+        final long end = System.nanoTime() + measureNanos;
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong notConnected = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong reconnects = new AtomicLong();
+        final AtomicLong inFlightSwaps = new AtomicLong();
+
+        Thread[] threads = new Thread[threadCount + 2];
+        for (int t = 0; t < threadCount; t++) {
+            final String sTagName = OPCUATestServer.tagName(t);
+            threads[t] = new Thread(() -> {
+                for (long i = 0; System.nanoTime() < end; i++) {
+                    double value = i;
+                    try {
+                        if (i % 2 == 0) {
+                            manager.writeOpcValue(sTagName, DataType.Analog, value);
+                            double read = manager.readOpcValue(sTagName, DataType.Analog);
+                            check(read == value, sTagName + " read " + read + " after writing " + value, failures);
+                        } else {
+                            manager.writeOpcValueAsync(sTagName, DataType.Analog, value).get();
+                            double read = manager.readOpcValueAsync(sTagName, DataType.Analog).get();
+                            check(read == value, sTagName + " read " + read + " after writing " + value + " (async)", failures);
+                        }
+                    } catch (Exception e) {
+                        Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                        if (cause instanceof OPCUANotConnectedException) {
+                            // Refused before sending, while the session was not connected.
+                            notConnected.incrementAndGet();
+                        } else {
+                            check(false, sTagName + " failed: " + cause, failures);
+                        }
+                    }
+                    calls.incrementAndGet();
+                }
+            }, "OPCUABenchmark-stress-" + t);
+        }
+        threads[threadCount] = new Thread(() -> {
+            try {
+                while (System.nanoTime() < end) {
+                    manager.reconnect();
+                    reconnects.incrementAndGet();
+                    Thread.sleep(20);
+                }
+            } catch (Exception e) {
+                check(false, "reconnect failed: " + e, failures);
+            }
+        }, "OPCUABenchmark-stress-reconnect");
+        // A call started before a swap must complete on the old client: the
+        // handle keeps it connected until released.
+        final OPCUANode inFlightNode = new OPCUANode(OPCUATestServer.tagName(0), DataType.Analog);
+        threads[threadCount + 1] = new Thread(() -> {
+            OPCUASessionRegistry.Session session = manager.getSession();
+            while (System.nanoTime() < end) {
+                OPCUASessionRegistry.ClientHandle handle = session.acquireClient();
+                try {
+                    if (!handle.client.isConnected()) {
+                        Thread.sleep(1);
+                        continue;
+                    }
+                    // Longer than the reconnect period, so the handle is usually swapped out.
+                    Thread.sleep(30);
+                    boolean swapped = session.getClient() != handle.client;
+                    check(handle.client.isConnected(), "client disconnected while a call held it", failures);
+                    handle.client.readData(inFlightNode);
+                    if (swapped) {
+                        inFlightSwaps.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    check(false, "call on a swapped out client failed: " + e, failures);
+                } finally {
+                    handle.release();
+                }
+            }
+        }, "OPCUABenchmark-stress-inflight");
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        manager.setContainer(null);
+
+        System.out.println(String.format("stress: %d threads, %d calls, %d reconnects, %d refused while not connected, "
+                + "%d calls completed on a swapped out client, %d failures",
+                threadCount, calls.get(), reconnects.get(), notConnected.get(), inFlightSwaps.get(), failures.get()));
+        check(inFlightSwaps.get() > 0, "no call completed on a swapped out client", failures);
+        return failures.get() == 0;
+    }
+
+    /** Replay the history of the first tag through OPCUAHistoryPager: a
+     *  whole window of several pages, then a window closed in the middle.
+     *  @param pageSize The number of values per HistoryRead.
+     *  @param testServer The in-process server, or null.
+     *  @return True if no check failed.
+     */
+    private boolean history(int pageSize, OPCUATestServer testServer) throws Exception
+    {
+        final AtomicLong failures = new AtomicLong();
+        long period = OPCUATestServer.HISTORY_PERIOD_MILLIS;
+        int count = pageSize * 5 + pageSize / 2;
+        long start = (System.currentTimeMillis() / period - count - 10) * period;
+        long end = start + count * period;
+        NodeId nodeId = OPCUANativeSession.toNodeId("ns=2;s=%s", OPCUATestServer.tagName(0));
+
+        OPCUANativeSession session = new OPCUANativeSession(sEndpointUrl);
+        try {
+            OpcUaClient client = session.getClient();
+
+            long startNanos = System.nanoTime();
+            int read = 0;
+            OPCUAHistoryPager pager = new OPCUAHistoryPager(client, nodeId, new Date(start), new Date(end), pageSize);
+            try {
+                while (pager.next()) {
+                    long time = start + read * period;
+                    check(pager.getTime() == time, "value " + read + " at " + pager.getTime() + " instead of " + time, failures);
+                    check(pager.getValue() == OPCUATestServer.historyValue(DataType.Analog, 0, time),
+                            "value " + read + " is " + pager.getValue(), failures);
+                    read++;
+                }
+            } finally {
+                pager.close();
+            }
+            long elapsed = System.nanoTime() - startNanos;
+            check(read == count, read + " values replayed instead of " + count, failures);
+            if (testServer != null) {
+                check(testServer.getOpenContinuationPoints() == 0, testServer.getOpenContinuationPoints()
+                        + " continuation points left open after the whole window", failures);
+            }
+
+            // Closed while the next pages are prefetched: the point held must be released.
+            int partial = pageSize * 3 / 2;
+            int taken = 0;
+            pager = new OPCUAHistoryPager(client, nodeId, new Date(start), new Date(end), pageSize);
+            try {
+                while (taken < partial && pager.next()) {
+                    taken++;
+                }
+            } finally {
+                pager.close();
+            }
+            check(taken == partial, taken + " values replayed before close() instead of " + partial, failures);
+            if (testServer != null) {
+                check(testServer.getOpenContinuationPoints() == 0, testServer.getOpenContinuationPoints()
+                        + " continuation points left open after close()", failures);
+            }
+
+            System.out.println(String.format("history: %d values in pages of %d in %.1f ms (%.0f values/s), %d failures",
+                    read, pageSize, elapsed / 1e6, read / Math.max(elapsed / 1e9, 1e-9), failures.get()));
+        } finally {
+            session.disconnect();
+        }
+        return failures.get() == 0;
+    }
+
+    private static void check(boolean condition, String sMessage, AtomicLong failures)
+    {
+        if (!condition) {
+            failures.incrementAndGet();
+            System.out.println("FAILED " + sMessage);
+        }
+    }
+
+    /** Create a manager connected to the benchmarked endpoint.
+     */
+    private OPCUAConnectionManager createManager(TypedCompositeActor top) throws Exception
+    {
+        OPCUAConnectionManager manager = new OPCUAConnectionManager(top, "OPCUAConnectionManager");
+        setExpression(manager, "endpoint", sEndpointUrl);
+        manager.waitForConnection();
+        return manager;
+    }
+
+    private static void setExpression(NamedObj container, String sName, String sExpression) throws Exception
+    {
+        Variable variable = (Variable) container.getAttribute(sName);
+        variable.setExpression(sExpression);
+        variable.validate();
+    }
+
+    /** Call an operation from several threads for the warm-up time, then
+     *  for the measured time, and print the results of the measured part.
+     */
+    private void measure(String sCase, int tagCount, int threadCount, Operation operation) throws Exception
+    {
+        final Samples[] samples = new Samples[threadCount];
+        Thread[] threads = new Thread[threadCount];
+        final long start = System.nanoTime();
+        final long measureFrom = start + warmupNanos;
+        final long end = measureFrom + measureNanos;
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            samples[t] = new Samples();
+            threads[t] = new Thread(() -> {
+                long iteration = 0;
+                try {
+                    long now = System.nanoTime();
+                    while (now < end) {
+                        operation.run(thread, iteration++);
+                        long after = System.nanoTime();
+                        if (now >= measureFrom) {
+                            samples[thread].add(after - now);
+                        }
+                        now = after;
+                    }
+                } catch (Exception e) {
+                    samples[thread].error = e;
+                }
+            }, "OPCUABenchmark-" + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report(sCase, tagCount, threadCount, samples);
+    }
+
+    /** Run an SDF model of actorCount OPCUARead and actorCount OPCUAWrite
+     *  actors, timing each iteration.
+     */
+    private void measureModel(int tagCount, int actorCount) throws Exception
+    {
+        TypedCompositeActor model = new TypedCompositeActor();
+        model.setName("model");
+        Manager ptManager = new Manager(model.workspace(), "manager");
+        model.setManager(ptManager);
+        SDFDirector director = new SDFDirector(model, "director");
+        setExpression(director, "iterations", "0");
+        createManager(model);
+
+        for (int i = 0; i < actorCount; i++) {
+            String sTagName = OPCUATestServer.tagName(i % tagCount);
+
+            OPCUARead reader = new OPCUARead(model, "read" + i);
+            setExpression(reader, "OPCUAConnectionManager", "OPCUAConnectionManager");
+            setExpression(reader, "Point", sTagName);
+            Discard discard = new Discard(model, "discard" + i);
+            model.connect(reader.output, discard.input);
+
+            Ramp ramp = new Ramp(model, "ramp" + i);
+            OPCUAWrite writer = new OPCUAWrite(model, "write" + i);
+            setExpression(writer, "OPCUAConnectionManager", "OPCUAConnectionManager");
+            setExpression(writer, "Point", sTagName);
+            model.connect(ramp.output, (TypedIOPort) writer.getPort("value"));
+        }
+
+        Samples[] samples = {new Samples()};
+        ptManager.initialize();
+        try {
+            long start = System.nanoTime();
+            long measureFrom = start + warmupNanos;
+            long end = measureFrom + measureNanos;
+            long now = start;
+            while (now < end) {
+                ptManager.iterate();
+                long after = System.nanoTime();
+                if (now >= measureFrom) {
+                    samples[0].add(after - now);
+                }
+                now = after;
+            }
+        } catch (Exception e) {
+            samples[0].error = e;
+        } finally {
+            ptManager.wrapup();
+        }
+        report("model iteration", tagCount, actorCount, samples);
+    }
+
+    /** Print the throughput (all threads) and latency percentiles.
+     */
+    private void report(String sCase, int tagCount, int threadCount, Samples[] samples)
+    {
+        long operations = 0;
+        int size = 0;
+        for (Samples s : samples) {
+            if (s.error != null) {
+                System.out.println(String.format("%-24s %6d %7d failed: %s", sCase, tagCount, threadCount, s.error));
+                return;
+            }
+            operations += s.operations;
+            size += s.size;
+        }
+        long[] all = new long[size];
+        int position = 0;
+        for (Samples s : samples) {
+            System.arraycopy(s.nanos, 0, all, position, s.size);
+            position += s.size;
+        }
+        Arrays.sort(all);
+        System.out.println(String.format("%-24s %6d %7d %12.1f %10.1f %10.1f %10.1f %10.1f %10.1f",
+                sCase, tagCount, threadCount, operations / (measureNanos / 1e9),
+                percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99),
+                percentile(all, 0.999), percentile(all, 1.0)));
+    }
+
+    /** Return a percentile of sorted latencies, in microseconds.
+     */
+    private static double percentile(long[] sorted, double fraction)
+    {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1000.0;
+    }
+}
@@ -0,0 +1,422 @@
+/* Paged, parallel browse of the OPC-UA address space through a Milo session.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUABrowser.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ByteString;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UByte;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.BrowseDirection;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.BrowseResultMask;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.NodeClass;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.BrowseDescription;
+import org.eclipse.milo.opcua.stack.core.types.structured.BrowseResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReferenceDescription;
+import org.eclipse.milo.opcua.stack.core.types.structured.ViewDescription;
+
+import itaipu.gss.framework.OPCUA.AccessLevel;
+import itaipu.gss.framework.OPCUA.DataType;
+import itaipu.gss.framework.OPCUA.OPCUANode;
+
+/** Walks the Objects folder of a server and hands each variable that is a
+ *  tag to a consumer as soon as its page of references arrives.
+ *  <p>
+ *  Each node is browsed with at most PAGE_SIZE references per response,
+ *  the rest being fetched with BrowseNext from the continuation point, so
+ *  the server never builds one huge response. Child objects found on a
+ *  page are forked as separate tasks of a fork-join pool, so that sibling
+ *  subtrees are explored in parallel while paging goes on. The requests
+ *  are waited for as managed blocks, so the pool adds workers while its
+ *  threads wait for the server.
+ *  <p>
+ *  Variables are tags when their node id matches the manager
+ *  "nodeIdFormat" (e.g. "ns=2;s=%s"); the access level and data type of
+ *  the variables of a page are read in one request, or in several if the
+ *  page exceeds the server MaxNodesPerRead. The browse stops when
+ *  maxResults tags were delivered or the task is cancelled, unless every
+ *  tag of the access level is collected too (to index the address space),
+ *  in which case it only stops when cancelled.
+ */
+class OPCUABrowser
+{
+    private static final int PAGE_SIZE = 1000;
+    private static final long REQUEST_TIMEOUT_SECONDS = 30;
+    // AccessLevel attribute bits.
+    private static final int CURRENT_READ = 0x01;
+    private static final int CURRENT_WRITE = 0x02;
+
+    private static final ForkJoinPool pool = new ForkJoinPool(8, p -> {
+        Thread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+        thread.setName("OPCUABrowser-" + thread.getId());
+        thread.setDaemon(true);
+        return thread;
+    }, null, false);
+
+    /** A browse in progress.
+     */
+    static final class Task
+    {
+        private final CompletableFuture<Integer> done = new CompletableFuture<Integer>();
+        private final AtomicInteger delivered = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        // Browse this task stands for, once started (see follow()).
+        private volatile Task inner = null;
+
+        /** Stop the browse; no node is delivered after this returns
+         *  (except one already being delivered).
+         */
+        void cancel()
+        {
+            cancelled = true;
+            Task current = inner;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        /** Return the number of nodes delivered so far.
+         */
+        int getDelivered()
+        {
+            Task current = inner;
+            return current != null ? current.getDelivered() : delivered.get();
+        }
+
+        /** Make this task stand for a browse started later, on another
+         *  thread: cancelling this task cancels it, and this task ends
+         *  with it.
+         */
+        void follow(Task browse)
+        {
+            inner = browse;
+            if (cancelled) {
+                browse.cancel();
+            }
+            browse.done.whenComplete((count, e) -> {
+                if (e != null) {
+                    done.completeExceptionally(e);
+                } else {
+                    done.complete(count);
+                }
+            });
+        }
+
+        /** Deliver nodes found by other means, up to maxResults, unless
+         *  cancelled, and end the task.
+         */
+        void deliver(List<OPCUANode> nodes, int maxResults, Consumer<OPCUANode> consumer)
+        {
+            int count = nodes == null ? 0 : Math.min(maxResults, nodes.size());
+            for (int i = 0; i < count && !cancelled; i++) {
+                consumer.accept(nodes.get(i));
+                delivered.incrementAndGet();
+            }
+            done.complete(delivered.get());
+        }
+
+        /** Return a future completed with the number of nodes delivered when
+         *  the browse ends, or exceptionally if it failed.
+         */
+        CompletableFuture<Integer> getDone()
+        {
+            return done;
+        }
+
+        /** Return a task that delivered its nodes already.
+         */
+        static Task completed(int count)
+        {
+            Task task = new Task();
+            task.delivered.set(count);
+            task.done.complete(count);
+            return task;
+        }
+    }
+
+    private final OpcUaClient client;
+    private final String sPrefix;
+    private final String sSuffix;
+    private final AccessLevel level;
+    private final Pattern filter;
+    private final int maxResults;
+    private final int maxNodesPerRead;
+    private final Consumer<OPCUANode> consumer;
+    private final Consumer<OPCUANode> collector;
+    private final Task task = new Task();
+    private volatile boolean full = false;
+    private final Set<NodeId> visited = Collections.newSetFromMap(new ConcurrentHashMap<NodeId, Boolean>());
+
+    private OPCUABrowser(OpcUaClient client, String sNodeIdFormat, AccessLevel level, Pattern filter,
+            int maxResults, int maxNodesPerRead, Consumer<OPCUANode> consumer, Consumer<OPCUANode> collector)
+    {
+        this.client = client;
+        int at = sNodeIdFormat.indexOf("%s");
+        this.sPrefix = at < 0 ? "" : sNodeIdFormat.substring(0, at);
+        this.sSuffix = at < 0 ? "" : sNodeIdFormat.substring(at + 2);
+        this.level = level;
+        this.filter = filter;
+        this.maxResults = maxResults;
+        // Two attributes are read per variable.
+        this.maxNodesPerRead = maxNodesPerRead > 1 ? maxNodesPerRead / 2 * 2 : Integer.MAX_VALUE;
+        this.consumer = consumer;
+        this.collector = collector;
+    }
+
+    /** Start browsing in the background.
+     *  @param client A connected Milo client.
+     *  @param sNodeIdFormat The format mapping tag names to node ids.
+     *  @param level The access level the tags must have.
+     *  @param filter The pattern the tag names must match, or null for all.
+     *  @param maxResults The maximum number of tags delivered.
+     *  @param maxNodesPerRead The server MaxNodesPerRead, 0 if none.
+     *  @param consumer Called with each tag, from several threads at once.
+     *  @param collector Called with every tag of the access level, matching
+     *   the filter or not, from several threads at once; or null.
+     *  @return The task of the browse.
+     */
+    static Task browse(OpcUaClient client, String sNodeIdFormat, AccessLevel level, Pattern filter,
+            int maxResults, int maxNodesPerRead, Consumer<OPCUANode> consumer, Consumer<OPCUANode> collector)
+    {
+        final OPCUABrowser browser = new OPCUABrowser(client, sNodeIdFormat, level, filter, maxResults,
+                maxNodesPerRead, consumer, collector);
+        pool.execute(() -> {
+            try {
+                browser.new Subtree(Identifiers.ObjectsFolder).invoke();
+                browser.task.done.complete(browser.task.delivered.get());
+            } catch (Throwable e) {
+                browser.task.done.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+            }
+        });
+        return browser.task;
+    }
+
+    /** Browse a node, deliver its tags and fork its child objects.
+     */
+    private final class Subtree extends RecursiveAction
+    {
+        private final NodeId nodeId;
+
+        Subtree(NodeId nodeId)
+        {
+            this.nodeId = nodeId;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (isStopped() || !visited.add(nodeId)) {
+                return;
+            }
+            List<ForkJoinTask<Void>> children = new ArrayList<ForkJoinTask<Void>>();
+            try {
+                BrowseDescription description = new BrowseDescription(nodeId, BrowseDirection.Forward,
+                        Identifiers.HierarchicalReferences, true,
+                        uint(NodeClass.Object.getValue() | NodeClass.Variable.getValue()),
+                        uint(BrowseResultMask.All.getValue()));
+                BrowseResult result = await(client.browse(new ViewDescription(NodeId.NULL_VALUE, DateTime.MIN_VALUE, uint(0)),
+                        uint(PAGE_SIZE), Collections.singletonList(description))).getResults()[0];
+                while (true) {
+                    if (!result.getStatusCode().isGood()) {
+                        System.out.println("OPCUABrowser::compute: Failed browsing " + nodeId + ": " + result.getStatusCode());
+                        break;
+                    }
+                    List<NodeId> variables = new ArrayList<NodeId>();
+                    ReferenceDescription[] references = result.getReferences();
+                    for (ReferenceDescription reference : references != null ? references : new ReferenceDescription[0]) {
+                        NodeId child = reference.getNodeId().toNodeId(client.getNamespaceTable()).orElse(null);
+                        if (child == null) {
+                            continue;
+                        }
+                        if (reference.getNodeClass() == NodeClass.Variable) {
+                            variables.add(child);
+                        } else if (!child.equals(Identifiers.Server)) {
+                            // The Server object only holds diagnostics.
+                            Subtree subtree = new Subtree(child);
+                            subtree.fork();
+                            children.add(subtree);
+                        }
+                    }
+                    deliver(variables);
+
+                    ByteString continuationPoint = result.getContinuationPoint();
+                    if (continuationPoint == null || continuationPoint.isNull() || continuationPoint.length() == 0) {
+                        break;
+                    }
+                    // Release the continuation point on the server when stopping early.
+                    boolean release = isStopped();
+                    result = await(client.browseNext(release, Collections.singletonList(continuationPoint))).getResults()[0];
+                    if (release) {
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                task.cancel();
+                throw new CompletionException(e);
+            } finally {
+                for (ForkJoinTask<Void> child : children) {
+                    child.join();
+                }
+            }
+        }
+    }
+
+    /** Deliver the variables of a page that are tags of the requested
+     *  access level and match the filter, and collect all of them.
+     */
+    private void deliver(List<NodeId> variables) throws Exception
+    {
+        List<String> tags = new ArrayList<String>();
+        List<ReadValueId> attributes = new ArrayList<ReadValueId>();
+        for (NodeId variable : variables) {
+            String sTagName = toTagName(variable);
+            if (sTagName != null && (collector != null || matches(sTagName))) {
+                tags.add(sTagName);
+                attributes.add(new ReadValueId(variable, AttributeId.UserAccessLevel.uid(), null, QualifiedName.NULL_VALUE));
+                attributes.add(new ReadValueId(variable, AttributeId.DataType.uid(), null, QualifiedName.NULL_VALUE));
+            }
+        }
+        if (tags.isEmpty() || isStopped()) {
+            return;
+        }
+        DataValue[] values = new DataValue[attributes.size()];
+        for (int from = 0; from < attributes.size(); from += maxNodesPerRead) {
+            List<ReadValueId> chunk = attributes.subList(from, Math.min(from + maxNodesPerRead, attributes.size()));
+            DataValue[] results = await(client.read(0.0, TimestampsToReturn.Neither, chunk)).getResults();
+            System.arraycopy(results, 0, values, from, results.length);
+        }
+        int required = level == AccessLevel.READ_WRITE ? CURRENT_WRITE : CURRENT_READ;
+        for (int i = 0; i < tags.size(); i++) {
+            Object access = values[2 * i].getValue().getValue();
+            if (!(access instanceof UByte) || (((UByte) access).intValue() & required) == 0) {
+                continue;
+            }
+            Object dataType = values[2 * i + 1].getValue().getValue();
+            DataType tType = toDataType(dataType);
+            OPCUANode node = new OPCUANode(tags.get(i), tType);
+            if (isStopped()) {
+                return;
+            }
+            if (collector != null) {
+                collector.accept(node);
+            }
+            if (full || !matches(node.getTagName())) {
+                continue;
+            }
+            if (task.delivered.incrementAndGet() > maxResults) {
+                task.delivered.decrementAndGet();
+                full = true;
+                if (collector == null) {
+                    task.cancel();
+                    return;
+                }
+                continue;
+            }
+            consumer.accept(node);
+        }
+    }
+
+    /** Return the type of a tag from its OPC-UA data type: Boolean is a
+     *  Status, unsigned integers are Accumulators (counters), anything
+     *  else is Analog.
+     */
+    private static DataType toDataType(Object dataType)
+    {
+        if (Identifiers.Boolean.equals(dataType)) {
+            return DataType.Status;
+        }
+        if (Identifiers.Byte.equals(dataType) || Identifiers.UInt16.equals(dataType)
+                || Identifiers.UInt32.equals(dataType) || Identifiers.UInt64.equals(dataType)
+                || Identifiers.UInteger.equals(dataType)) {
+            return DataType.Accumulator;
+        }
+        return DataType.Analog;
+    }
+
+    /** Wait for a request of a pool thread, as a managed block so that the
+     *  pool keeps enough threads running meanwhile.
+     */
+    private static <T> T await(final CompletableFuture<T> future) throws Exception
+    {
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            @Override
+            public boolean block() throws InterruptedException
+            {
+                try {
+                    future.get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (ExecutionException | TimeoutException e) {
+                    // Reported by the get() below.
+                }
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable()
+            {
+                return future.isDone();
+            }
+        });
+        return future.get(0, TimeUnit.NANOSECONDS);
+    }
+
+    private boolean matches(String sTagName)
+    {
+        return filter == null || filter.matcher(sTagName).matches();
+    }
+
+    /** Return the tag name of a node id, or null if the node id does not
+     *  match the node id format.
+     */
+    private String toTagName(NodeId nodeId)
+    {
+        String sNodeId = nodeId.toParseableString();
+        if (sNodeId.length() <= sPrefix.length() + sSuffix.length()
+                || !sNodeId.startsWith(sPrefix) || !sNodeId.endsWith(sSuffix)) {
+            return null;
+        }
+        return sNodeId.substring(sPrefix.length(), sNodeId.length() - sSuffix.length());
+    }
+
+    private boolean isStopped()
+    {
+        return task.cancelled;
+    }
+}
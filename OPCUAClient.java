@@ -1,16 +1,21 @@
 
 package ptolemy.actor.lib;
 
-import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.swing.SwingUtilities;
+
+import itaipu.gss.framework.OPCUA.AccessLevel;
 import itaipu.gss.framework.OPCUA.DataType;
-import itaipu.gss.framework.OPCUA.OPCUANode;
 import itaipu.gss.framework.log.AppLogger;
 import ptolemy.actor.TypedAtomicActor;
 import ptolemy.data.DoubleToken;
+import ptolemy.data.IntToken;
 import ptolemy.data.expr.Parameter;
 import ptolemy.data.expr.StringParameter;
 import ptolemy.data.expr.OPCUAPointParameter;
+import ptolemy.data.type.BaseType;
 import ptolemy.kernel.CompositeEntity;
 import ptolemy.kernel.util.Attribute;
 import ptolemy.kernel.util.IllegalActionException;
@@ -22,10 +27,14 @@ public class OPCUAClient extends TypedAtomicActor{
 
     private StringParameter managerParam;
     private Parameter node;
-    private String tagName;
+    private volatile String tagName;
     private Parameter pDataType;
-    private DataType dataType;
-    private OPCUAConnectionManager myManager = null;
+    private volatile DataType dataType;
+    // Set by attributeChanged, read by the actor threads of the director.
+    private volatile OPCUAConnectionManager myManager = null;
+    private Parameter maxChoices;
+    // Browse filling the choices of the Point parameter, if any.
+    private volatile OPCUABrowser.Task browsing = null;
 
     /** Construct an actor with the given container and name.
      *  @param container The container.
@@ -57,28 +66,73 @@ public class OPCUAClient extends TypedAtomicActor{
         pDataType.addChoice("Analog");
         pDataType.addChoice("Status");
         pDataType.addChoice("Accumulator");
+
+        // Maximum number of nodes listed in the choices of the Point parameter.
+        maxChoices = new Parameter(this, "maxChoices");
+        maxChoices.setTypeEquals(BaseType.INT);
+        maxChoices.setExpression("5000");
     }
 
 
     /** Populates the list of choices for the "point" parameter
-     *  with the list of nodes from the OPC-UA server.
+     *  with the list of nodes from the OPC-UA server. The browse threads
+     *  collect the names as the server is browsed, up to maxChoices of
+     *  them, and the choices are added on the event dispatch thread,
+     *  where the editor reads them. The method returns as soon as the browse is
+     *  started, so the editor is not blocked; it can stop the browse with
+     *  cancelBrowse(). A browse still running for a previous call is
+     *  cancelled.
      *  @param node The Parameter instance to be updated.
      *  @return The updated Parameter instance.
      *  @exception IllegalActionException.
      */
     public Parameter setNodesTag(Parameter node, String filterExpr) throws IllegalActionException {
         String managerName = managerParam.stringValue();
-        List<OPCUANode> allNodes = null;
-
-        if(myManager != null){
-            System.out.println("OPCUAClient::setNodesTag: Manager=" + managerName + " connected? " + myManager.isConnected());
-            allNodes = myManager.browseAllOpcNodes(filterExpr);
-        }
-        if (allNodes != null) {
-            node.removeAllChoices();
-            for (OPCUANode opcuaNode : allNodes) {
-                node.addChoice(opcuaNode.getTagName());
-            }
+        OPCUAConnectionManager manager = myManager;
+        cancelBrowse();
+
+        if(manager != null){
+            System.out.println("OPCUAClient::setNodesTag: Manager=" + managerName + " connected? " + manager.isConnected());
+            // The old choices are kept until the first node arrives.
+            final AtomicBoolean first = new AtomicBoolean(true);
+            final AtomicBoolean scheduled = new AtomicBoolean(false);
+            final ConcurrentLinkedQueue<String> names = new ConcurrentLinkedQueue<String>();
+            final OPCUABrowser.Task[] started = new OPCUABrowser.Task[1];
+            // Runs on the event dispatch thread; names of a browse cancelled since are dropped.
+            final Runnable addChoices = () -> {
+                scheduled.set(false);
+                OPCUABrowser.Task self = started[0];
+                boolean current = self == null || !self.isCancelled();
+                for (String sName = names.poll(); sName != null; sName = names.poll()) {
+                    if (!current) {
+                        continue;
+                    }
+                    if (first.getAndSet(false)) {
+                        node.removeAllChoices();
+                    }
+                    node.addChoice(sName);
+                }
+            };
+            OPCUABrowser.Task task = manager.streamOpcNodes(AccessLevel.READ_ONLY, filterExpr,
+                    ((IntToken) maxChoices.getToken()).intValue(), opcuaNode -> {
+                        names.add(opcuaNode.getTagName());
+                        if (!scheduled.getAndSet(true)) {
+                            SwingUtilities.invokeLater(addChoices);
+                        }
+                    });
+            started[0] = task;
+            browsing = task;
+            task.getDone().whenComplete((count, error) -> {
+                if (browsing == task) {
+                    browsing = null;
+                }
+                if (error != null) {
+                    System.out.println("OPCUAClient::setNodesTag: Browse failed after " + task.getDelivered() + " nodes.");
+                    error.printStackTrace();
+                } else if (task.getDelivered() == 0) {
+                    System.out.println("OPCUAClient::setNodesTag: No node found...");
+                }
+            });
         } else {
             System.out.println("OPCUAClient::setNodesTag: Nodes list is null...");
             //node.removeAllChoices();
@@ -90,6 +144,16 @@ public class OPCUAClient extends TypedAtomicActor{
         return node;
     }
 
+    /** Stop filling the choices of the Point parameter. The choices
+     *  already added are kept.
+     */
+    public void cancelBrowse() {
+        OPCUABrowser.Task task = browsing;
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
     /** React to a change in an attribute.  This method is called by
      *  a contained attribute when its value changes.  
      *  @param attribute The attribute that changed.
@@ -125,10 +189,44 @@ public class OPCUAClient extends TypedAtomicActor{
         }
     }
 
+    /** Waits for the manager to be connected to the server. The connection
+     *  is established in the background, so this is the only place where
+     *  actors block on it.
+     *  @exception IllegalActionException If the manager does not connect in time.
+     */
+    @Override
+    public void preinitialize() throws IllegalActionException {
+        super.preinitialize();
+
+        OPCUAConnectionManager manager = myManager;
+        if (manager != null) {
+            manager.waitForConnection();
+        }
+    }
+
+    /** Clone the actor into the specified workspace.
+     *  @param workspace The workspace for the new object.
+     *  @return A new actor.
+     *  @exception CloneNotSupportedException If a derived class contains
+     *   an attribute that cannot be cloned.
+     */
+    @Override
+    public OPCUAClient clone(Workspace workspace) throws CloneNotSupportedException {
+        OPCUAClient newObject = (OPCUAClient) super.clone(workspace);
+        // Private parameters are not re-pointed to the cloned attributes by NamedObj.
+        newObject.managerParam = (StringParameter) newObject.getAttribute("OPCUAConnectionManager");
+        newObject.node = (Parameter) newObject.getAttribute("Point");
+        newObject.pDataType = (Parameter) newObject.getAttribute("DataType");
+        newObject.maxChoices = (Parameter) newObject.getAttribute("maxChoices");
+        newObject.browsing = null;
+        return newObject;
+    }
+
     /** Getters:
      */
     public OPCUAConnectionManager getMyManager() {
-        // FIXME - myManager can be modified outside the getter...
+        // The manager may be replaced by attributeChanged at any time: callers
+        // making several calls should keep the returned reference.
         return this.myManager;
     }
     
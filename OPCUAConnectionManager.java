@@ -18,15 +18,25 @@ To include actors into the "Itaipu" library (no need of full build):
  */
 package ptolemy.actor.lib;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 import itaipu.gss.framework.OPCUA.AccessLevel;
 import itaipu.gss.framework.OPCUA.DataType;
 import itaipu.gss.framework.OPCUA.OPCUAClient;
-import itaipu.gss.framework.OPCUA.OPCUAConnectOptions;
 import itaipu.gss.framework.OPCUA.OPCUAConnectionException;
 import itaipu.gss.framework.OPCUA.OPCUANode;
 import itaipu.gss.framework.OPCUA.OPCUAValue;
@@ -34,7 +44,14 @@ import itaipu.gss.framework.exception.AppException;
 import itaipu.gss.framework.log.AppLogger;
 import ptolemy.actor.CompositeActor;
 import ptolemy.actor.TypedAtomicActor;
+import ptolemy.actor.util.Time;
+import ptolemy.data.BooleanToken;
+import ptolemy.data.DoubleToken;
+import ptolemy.data.IntToken;
+import ptolemy.data.expr.FileParameter;
+import ptolemy.data.expr.Parameter;
 import ptolemy.data.expr.StringParameter;
+import ptolemy.data.type.BaseType;
 import ptolemy.kernel.CompositeEntity;
 import ptolemy.kernel.util.Attribute;
 import ptolemy.kernel.util.IllegalActionException;
@@ -46,7 +63,46 @@ public class OPCUAConnectionManager extends TypedAtomicActor
 {
 
     private StringParameter endpoint;
-    private OPCUAClient client = null;
+    private Parameter readBatchSize;
+    private Parameter prefetchMaxAge;
+    private Parameter publishingInterval;
+    private Parameter samplingInterval;
+    private StringParameter nodeIdFormat;
+    private Parameter writeBatchSize;
+    private Parameter writeQueueCapacity;
+    private Parameter writeFlushInterval;
+    private StringParameter writeQueueFullPolicy;
+    private Parameter browseCacheTTL;
+    private FileParameter addressSpaceSnapshots;
+    private Parameter connectTimeout;
+    private Parameter statsAtWrapup;
+    private Parameter asyncConcurrency;
+    private StringParameter asyncExecutor;
+    private StringParameter trafficMode;
+    private FileParameter trafficLog;
+    private Parameter journalWrites;
+    private FileParameter writeJournal;
+    private Parameter writeJournalMaxSize;
+    private volatile OPCUASessionRegistry.Session session = null;
+    private volatile OPCUATrafficLog traffic = null;
+    private volatile OPCUAWriteJournal journal = null;
+    private Runnable connectListener = this::sessionConnected;
+    private OPCUAManagerStats stats = new OPCUAManagerStats();
+    private OPCUAAsyncExecutor async = null;
+    // Incremented at each reconnection, so that an older restart of the subscriptions gives up.
+    private volatile int subscriptionRestarts = 0;
+    private OPCUANodeIndex nodeIndex = new OPCUANodeIndex(this::loadAddressSpace);
+    // Snapshots saved before this time are not used (see refreshNodeIndex).
+    private volatile long browseRequestedAt = 0;
+    private OPCUAWriteQueue writeQueue = null;
+    private OPCUAReadBatcher readBatcher = new OPCUAReadBatcher(this);
+    // Readers with prefetch set, read ahead without the other readers.
+    private OPCUAReadBatcher prefetchBatcher = new OPCUAReadBatcher(this);
+    // Poll classes of the readers with a sample period, indexed by period (ms).
+    private Map<Long, OPCUAReadBatcher> pollClasses = new HashMap<Long, OPCUAReadBatcher>();
+    private List<OPCUATagHandle> writeHandles = new ArrayList<OPCUATagHandle>();
+    private OPCUASubscription subscription = new OPCUASubscription();
+    private List<OPCUAEventMonitor> eventMonitors = new ArrayList<OPCUAEventMonitor>();
     //opc.tcp://chi259.itaipu.int:4840
     private String sEndpointText = "opc.tcp://chi259.itaipu.int:4840";
  
@@ -67,16 +123,121 @@ public class OPCUAConnectionManager extends TypedAtomicActor
         AppLogger.setupConsoleHandler();
         //AppLogger.setupFileHandler("PtolemyII");
         
+        // Server endpoint, or an ordered comma separated list of redundant
+        // servers: the session then keeps a standby connection to the next
+        // server and switches to it when the active one stops responding.
         endpoint = new StringParameter(this, "endpoint");
         endpoint.setExpression(sEndpointText);
 
-        try {
-            reconnect();
-        } catch (Exception e) {
-            System.out.println("OPCUAConnectionManager::OPCUAConnectionManager: Failed connecting client.");
-            e.printStackTrace();
-        }
-        
+        // Maximum number of nodes sent in a single multi-node read request
+        // (and write request, for writeBatchSize), lowered at initialize to
+        // the MaxNodesPerRead/MaxNodesPerWrite published by the server.
+        readBatchSize = new Parameter(this, "readBatchSize");
+        readBatchSize.setTypeEquals(BaseType.INT);
+        readBatchSize.setExpression("500");
+
+        // Readers with prefetch enabled discard values read ahead that are
+        // older than this (milliseconds) and read the server again.
+        prefetchMaxAge = new Parameter(this, "prefetchMaxAge");
+        prefetchMaxAge.setTypeEquals(BaseType.DOUBLE);
+        prefetchMaxAge.setExpression("1000.0");
+
+        // Subscription settings (milliseconds), used by readers in "Subscription" mode
+        // and by OPCUAEventSource actors.
+        publishingInterval = new Parameter(this, "publishingInterval");
+        publishingInterval.setTypeEquals(BaseType.DOUBLE);
+        publishingInterval.setExpression("500.0");
+
+        samplingInterval = new Parameter(this, "samplingInterval");
+        samplingInterval.setTypeEquals(BaseType.DOUBLE);
+        samplingInterval.setExpression("250.0");
+
+        // Maps a tag name to the node id used by subscriptions.
+        nodeIdFormat = new StringParameter(this, "nodeIdFormat");
+        nodeIdFormat.setExpression("ns=2;s=%s");
+
+        // Queued writes: capacity in distinct nodes, flush window in milliseconds,
+        // and what a writer does when the queue is full.
+        writeBatchSize = new Parameter(this, "writeBatchSize");
+        writeBatchSize.setTypeEquals(BaseType.INT);
+        writeBatchSize.setExpression("500");
+
+        writeQueueCapacity = new Parameter(this, "writeQueueCapacity");
+        writeQueueCapacity.setTypeEquals(BaseType.INT);
+        writeQueueCapacity.setExpression("1000");
+
+        writeFlushInterval = new Parameter(this, "writeFlushInterval");
+        writeFlushInterval.setTypeEquals(BaseType.DOUBLE);
+        writeFlushInterval.setExpression("50.0");
+
+        writeQueueFullPolicy = new StringParameter(this, "writeQueueFullPolicy");
+        writeQueueFullPolicy.setExpression("Block");
+        writeQueueFullPolicy.addChoice("Block");
+        writeQueueFullPolicy.addChoice("DropOldest");
+        writeQueueFullPolicy.addChoice("Fail");
+
+        // Time to live (seconds) of the browsed address space index, 0 = until refreshed.
+        browseCacheTTL = new Parameter(this, "browseCacheTTL");
+        browseCacheTTL.setTypeEquals(BaseType.DOUBLE);
+        browseCacheTTL.setExpression("600.0");
+
+        // Directory of the address space snapshots, one file per endpoint and
+        // access level, used instead of browsing the server while it reports
+        // the same namespaces and build, or cannot be reached. Empty = none.
+        addressSpaceSnapshots = new FileParameter(this, "addressSpaceSnapshots");
+        addressSpaceSnapshots.setExpression("$HOME/.opcua-snapshots");
+
+        // Time (seconds) actors wait at preinitialize for the session to connect.
+        connectTimeout = new Parameter(this, "connectTimeout");
+        connectTimeout.setTypeEquals(BaseType.DOUBLE);
+        connectTimeout.setExpression("10.0");
+
+        // Asynchronous requests (readOpcValueAsync...): maximum number of
+        // requests in progress, and whether they run on a pool of platform
+        // threads ("Bounded") or on virtual threads ("Virtual", Java 21+).
+        asyncConcurrency = new Parameter(this, "asyncConcurrency");
+        asyncConcurrency.setTypeEquals(BaseType.INT);
+        asyncConcurrency.setExpression("16");
+
+        asyncExecutor = new StringParameter(this, "asyncExecutor");
+        asyncExecutor.setExpression("Bounded");
+        asyncExecutor.addChoice("Bounded");
+        asyncExecutor.addChoice("Virtual");
+
+        // Print the latency and failure statistics of the run at wrapup.
+        // They are also published over JMX while the manager exists.
+        statsAtWrapup = new Parameter(this, "statsAtWrapup");
+        statsAtWrapup.setTypeEquals(BaseType.BOOLEAN);
+        statsAtWrapup.setExpression("false");
+
+        // Live: read from the server. Record: also append every value read
+        // to trafficLog. Replay: serve the values of trafficLog, no server.
+        trafficMode = new StringParameter(this, "trafficMode");
+        trafficMode.setExpression("Live");
+        trafficMode.addChoice("Live");
+        trafficMode.addChoice("Record");
+        trafficMode.addChoice("Replay");
+
+        trafficLog = new FileParameter(this, "trafficLog");
+        trafficLog.setExpression("$HOME/opcua-traffic.log");
+
+        // Keep the writes that fail, or are issued while the server is
+        // unreachable, in writeJournal (at most writeJournalMaxSize MB) and
+        // send them when the session reconnects, instead of stopping the model.
+        journalWrites = new Parameter(this, "journalWrites");
+        journalWrites.setTypeEquals(BaseType.BOOLEAN);
+        journalWrites.setExpression("false");
+
+        writeJournal = new FileParameter(this, "writeJournal");
+        writeJournal.setExpression("$HOME/opcua-writes.journal");
+
+        writeJournalMaxSize = new Parameter(this, "writeJournalMaxSize");
+        writeJournalMaxSize.setTypeEquals(BaseType.INT);
+        writeJournalMaxSize.setExpression("64");
+
+        // The session is acquired on first use (a browse of the editor, or
+        // preinitialize), not here: a manager only placed in a model does
+        // not connect to its server.
     }
 
     /** Find a OPC-UA manager with the specified name for the specified
@@ -119,10 +280,6 @@ public class OPCUAConnectionManager extends TypedAtomicActor
     public void attributeChanged(Attribute attribute) throws IllegalActionException
     {
         if (attribute == endpoint) {
-            if(client == null){
-                client = new OPCUAClient();
-            }
-            
             String sNewEndptText = endpoint.getExpression();
             if( !sNewEndptText.equals(sEndpointText) ){
                 System.out.println( "OPCUAConnectionManager::attributeChanged: Old= " + sEndpointText + " New= " + sNewEndptText);
@@ -131,6 +288,13 @@ public class OPCUAConnectionManager extends TypedAtomicActor
             reconnect();
 
             }
+        } else if (attribute == browseCacheTTL) {
+            nodeIndex.setTTL((long) (((DoubleToken) browseCacheTTL.getToken()).doubleValue() * 1000.0));
+        } else if (attribute == readBatchSize || attribute == writeBatchSize || attribute == writeQueueCapacity
+                || attribute == asyncConcurrency) {
+            if (((IntToken) ((Parameter) attribute).getToken()).intValue() < 1) {
+                throw new IllegalActionException(this, attribute.getName() + " must be greater than zero.");
+            }
         } else {
             super.attributeChanged(attribute);
         }
@@ -161,22 +325,235 @@ public class OPCUAConnectionManager extends TypedAtomicActor
     }
 
      /** Find available OPC-UA nodes in the server, according to the specified access level.
+     *  The nodes are taken from the manager index of the address space,
+     *  which is browsed from the server only when empty or expired.
      *  @return A list of available nodes in the server.
      */   
     public List<OPCUANode> browseOpcNodes(AccessLevel level, String filterExpr) 
     {
-        List<OPCUANode> nodes = null;
+        return nodeIndex.query(level, filterExpr);
+    }
+
+    /** Deliver the nodes of an access level matching a filter to a
+     *  consumer as they are found, without building the whole list. The
+     *  nodes come from the index if it is loaded, otherwise from a paged,
+     *  parallel browse of the server (see OPCUABrowser). The browse
+     *  collects every node of the level as it arrives, and once it has
+     *  walked the whole address space (i.e. was not cancelled) the nodes
+     *  become the index and the snapshot of the level, so the next browse
+     *  does not go to the server.
+     *  <p>
+     *  Only nodes of an index already loaded are delivered by the caller:
+     *  loading a snapshot, connecting, browsing and the fallbacks all run
+     *  in the task, on the manager executor, so the caller (the editor)
+     *  never waits for the server.
+     *  @param level The access level.
+     *  @param filterExpr The filter, e.g. "*", "GEN1*" or "GEN?.MW".
+     *  @param maxResults The maximum number of nodes delivered.
+     *  @param consumer Called with each node, possibly from several threads.
+     *  @return The browse, which can be cancelled and waited for.
+     */
+    OPCUABrowser.Task streamOpcNodes(AccessLevel level, String filterExpr, int maxResults, Consumer<OPCUANode> consumer)
+    {
+        List<OPCUANode> cached = nodeIndex.queryCached(level, filterExpr);
+        if (cached != null) {
+            int count = Math.min(maxResults, cached.size());
+            for (int i = 0; i < count; i++) {
+                consumer.accept(cached.get(i));
+            }
+            return OPCUABrowser.Task.completed(count);
+        }
+        final OPCUABrowser.Task task = new OPCUABrowser.Task();
+        getAsyncExecutor().submit(() -> {
+            try {
+                File snapshot = getSnapshotFile(level);
+                if (snapshot != null && snapshot.isFile()) {
+                    // Loading the snapshot is faster than any browse.
+                    task.deliver(browseOpcNodes(level, filterExpr), maxResults, consumer);
+                } else {
+                    startBrowse(task, level, filterExpr, maxResults, consumer);
+                }
+            } catch (Throwable e) {
+                task.getDone().completeExceptionally(e);
+            }
+            return null;
+        });
+        return task;
+    }
+
+    /** Start the native browse of streamOpcNodes() and make the task
+     *  follow it, or deliver the nodes of the index if it is unavailable.
+     */
+    private void startBrowse(OPCUABrowser.Task task, AccessLevel level, String filterExpr, int maxResults,
+            Consumer<OPCUANode> consumer)
+    {
         try {
-            if(client.isConnected())
-            nodes = client.getObjects(filterExpr, level);
-        } catch (AppException e) {
-            e.printStackTrace();
-        } catch (OPCUAConnectionException e) {
-            System.out.println( "OPCUAConnectionManager::browseOpcNodes: OPCUAConnectionException:");
+            Pattern filter = filterExpr == null || filterExpr.isEmpty() || filterExpr.equals("*")
+                    ? null : OPCUANodeIndex.toPattern(filterExpr);
+            final long start = System.nanoTime();
+            final List<OPCUANode> found = Collections.synchronizedList(new ArrayList<OPCUANode>());
+            // The limits of the server are read before the session is ready.
+            waitForConnection();
+            final OPCUABrowser.Task browse = OPCUABrowser.browse(getNativeSession().getClient(), getNodeIdFormat(),
+                    level, filter, maxResults, getOperationLimits().maxNodesPerRead, consumer, found::add);
+            browse.getDone().thenAccept(count -> {
+                if (browse.isCancelled()) {
+                    return;
+                }
+                stats.recordBrowse(System.nanoTime() - start);
+                // Off the browse pool: saving the snapshot reads the server.
+                getAsyncExecutor().submit(() -> {
+                    addressSpaceBrowsed(level, new ArrayList<OPCUANode>(found));
+                    return null;
+                });
+            });
+            task.follow(browse);
+        } catch (Exception e) {
+            System.out.println("OPCUAConnectionManager::streamOpcNodes: Native browse unavailable, using the index.");
+            task.deliver(task.isCancelled() ? null : browseOpcNodes(level, filterExpr), maxResults, consumer);
+        }
+    }
+
+    /** Discard the index of the address space, so that the next browse
+     *  gets the nodes from the server, even if a snapshot of the same
+     *  server exists.
+     */
+    public void refreshNodeIndex()
+    {
+        browseRequestedAt = System.currentTimeMillis();
+        nodeIndex.refresh();
+    }
+
+    /** Load all nodes of the specified access level for the index. The
+     *  snapshot file is used if the server reports the namespaces and build
+     *  it was saved with, or if the server cannot be reached; otherwise the
+     *  server is browsed and a new snapshot saved.
+     */
+    private List<OPCUANode> loadAddressSpace(AccessLevel level) throws AppException, OPCUAConnectionException
+    {
+        File file = getSnapshotFile(level);
+        if (file == null) {
+            return browseServer(level);
+        }
+        OPCUANodeSnapshot stored = null;
+        try {
+            stored = OPCUANodeSnapshot.load(file);
+        } catch (IOException e) {
+            System.out.println("OPCUAConnectionManager::loadAddressSpace: Ignoring unreadable snapshot " + file);
+        }
+        boolean connected = isConnected();
+        String sServerKey = null;
+        if (connected) {
+            try {
+                sServerKey = getNativeSession().readServerKey();
+            } catch (Exception e) {
+                System.out.println("OPCUAConnectionManager::loadAddressSpace: Cannot read namespaces and build info of the server.");
+            }
+        }
+        if (stored != null && stored.savedAt > browseRequestedAt
+                && (sServerKey != null ? sServerKey.equals(stored.sServerKey) : !connected)) {
+            System.out.println("OPCUAConnectionManager::loadAddressSpace: " + stored.nodes.size() + " nodes from " + file
+                    + (connected ? "" : " (server unreachable)"));
+            return stored.nodes;
+        }
+
+        List<OPCUANode> nodes;
+        try {
+            nodes = browseServer(level);
+        } catch (AppException | OPCUAConnectionException e) {
+            if (stored == null) {
+                throw e;
+            }
+            System.out.println("OPCUAConnectionManager::loadAddressSpace: Browse failed, using " + file);
+            return stored.nodes;
+        }
+        if (nodes == null) {
+            return stored != null ? stored.nodes : null;
+        }
+        if (sServerKey != null) {
+            saveSnapshot(file, sServerKey, nodes);
+        }
+        return nodes;
+    }
+
+    /** Keep the nodes of a complete browse of an access level as its index,
+     *  and save them as its snapshot if snapshots are enabled.
+     */
+    private void addressSpaceBrowsed(AccessLevel level, List<OPCUANode> nodes)
+    {
+        nodeIndex.put(level, nodes);
+        File file = getSnapshotFile(level);
+        if (file == null) {
+            return;
+        }
+        try {
+            saveSnapshot(file, getNativeSession().readServerKey(), nodes);
+        } catch (Exception e) {
+            System.out.println("OPCUAConnectionManager::addressSpaceBrowsed: Cannot read namespaces and build info of the server.");
+        }
+    }
+
+    private void saveSnapshot(File file, String sServerKey, List<OPCUANode> nodes)
+    {
+        try {
+            OPCUANodeSnapshot.save(file, sEndpointText, sServerKey, nodes);
+        } catch (IOException e) {
+            System.out.println("OPCUAConnectionManager::saveSnapshot: Failed saving snapshot " + file);
             e.printStackTrace();
         }
+    }
+
+    /** Return the snapshot file of the endpoint and an access level, or
+     *  null if addressSpaceSnapshots is empty.
+     */
+    private File getSnapshotFile(AccessLevel level)
+    {
+        try {
+            File directory = addressSpaceSnapshots.asFile();
+            return directory == null ? null : OPCUANodeSnapshot.getFile(directory, sEndpointText, level);
+        } catch (IllegalActionException e) {
+            return null;
+        }
+    }
+
+    /** Browse all nodes of the specified access level from the server,
+     *  with the paged, parallel browse of the Milo session. The framework
+     *  browse is used if it fails or finds no tag (e.g. when nodeIdFormat
+     *  does not match the node ids of the server).
+     */
+    private List<OPCUANode> browseServer(AccessLevel level) throws AppException, OPCUAConnectionException
+    {
+        long nativeStart = System.nanoTime();
+        try {
+            List<OPCUANode> found = Collections.synchronizedList(new ArrayList<OPCUANode>());
+            waitForConnection();
+            OPCUABrowser.browse(getNativeSession().getClient(), getNodeIdFormat(), level, null,
+                    Integer.MAX_VALUE, getOperationLimits().maxNodesPerRead, found::add, null).getDone().get();
+            if (!found.isEmpty()) {
+                stats.recordBrowse(System.nanoTime() - nativeStart);
+                return new ArrayList<OPCUANode>(found);
+            }
+        } catch (Exception e) {
+            System.out.println("OPCUAConnectionManager::browseServer: Native browse failed, using the framework browse.");
+        }
+
+        List<OPCUANode> nodes = null;
+        OPCUASessionRegistry.ClientHandle handle = getSession().acquireClient();
+        try {
+            if(handle.client.isConnected()) {
+                long start = System.nanoTime();
+                try {
+                    nodes = handle.client.getObjects("*", level);
+                } catch (AppException | OPCUAConnectionException e) {
+                    stats.recordBrowseFailure(e);
+                    throw e;
+                }
+                stats.recordBrowse(System.nanoTime() - start);
+            }
+        } finally {
+            handle.release();
+        }
         return nodes;
-        
     }
  
     /** Read the specified OPC-UA node value
@@ -188,29 +565,326 @@ public class OPCUAConnectionManager extends TypedAtomicActor
     public double readOpcValue(String sNodeName, DataType tType) throws AppException, OPCUAConnectionException, IllegalActionException
     {
         double dRetVal = -Double.MAX_VALUE;
-        if(!client.isConnected()) {
-            // Raise exception:
-            throw new IllegalActionException(this, "Client is not connected to a server.");
+        OPCUATrafficLog log = traffic;
+        if (log != null && !log.isRecording()) {
+            return replayValue(log, sNodeName).getValue();
         }
-        else {
-            // Read value
-            OPCUANode node = new OPCUANode(sNodeName, tType);
-            Map<OPCUANode, OPCUAValue> opcuaNodeOPCUAValueMap = client.readData(node);
+        OPCUASessionRegistry.ClientHandle handle = acquireConnectedClient();
 
-            for (Map.Entry<OPCUANode, OPCUAValue> entry : opcuaNodeOPCUAValueMap.entrySet()) {
-                OPCUAValue value = entry.getValue();
-                dRetVal = value.getValue();
-            }
+        // Read value
+        OPCUANode node = new OPCUANode(sNodeName, tType);
+        long start = System.nanoTime();
+        Map<OPCUANode, OPCUAValue> opcuaNodeOPCUAValueMap;
+        try {
+            opcuaNodeOPCUAValueMap = handle.client.readData(node);
+        } catch (AppException | OPCUAConnectionException e) {
+            stats.recordReadFailure(e);
+            throw e;
+        } finally {
+            handle.release();
+        }
+        stats.recordRead(System.nanoTime() - start, 1, OPCUAManagerStats.estimateBytes(sNodeName.length(), 1));
+        if (log != null) {
+            recordValues(log, opcuaNodeOPCUAValueMap);
+        }
+
+        for (Map.Entry<OPCUANode, OPCUAValue> entry : opcuaNodeOPCUAValueMap.entrySet()) {
+            OPCUAValue value = entry.getValue();
+            dRetVal = value.getValue();
         }
         
         return dRetVal;
     }
+
+    /** Register a reader of the specified OPC-UA node, so that its value
+     *  is fetched together with all other registered nodes in a single
+     *  batched read per iteration. The node is checked against the server
+     *  at initialize.
+     *  @param sNodeName OPC-UA node name.
+     *  @param tType The node data type (analog/accumulator/status).
+     *  @return The reader handle, to be passed to readBatchedOpcValue().
+     */
+    public OPCUATagHandle registerReader(String sNodeName, DataType tType)
+    {
+        return readBatcher.register(sNodeName, tType);
+    }
+
+    /** Register a reader of the specified OPC-UA node that reads one
+     *  iteration ahead (see prefetchBatchedOpcValues). Such readers are
+     *  batched together, apart from the other readers, which keep reading
+     *  fresh values at every iteration.
+     *  @param sNodeName OPC-UA node name.
+     *  @param tType The node data type (analog/accumulator/status).
+     *  @return The reader handle, to be passed to readBatchedOpcValue().
+     */
+    public OPCUATagHandle registerPrefetchedReader(String sNodeName, DataType tType)
+    {
+        return prefetchBatcher.register(sNodeName, tType);
+    }
+
+    /** Register a reader of the specified OPC-UA node that samples the
+     *  server at most once per period. Readers of the same period (rounded
+     *  to the millisecond) form a poll class, whose nodes are read together
+     *  in a single batched read when the period elapsed; in between, the
+     *  values of the last read are returned. The period is measured in
+     *  wall clock time, or in model time in Record and Replay modes so
+     *  that a replay reads the same values at the same firings.
+     *  @param sNodeName OPC-UA node name.
+     *  @param tType The node data type (analog/accumulator/status).
+     *  @param dSamplePeriod The sample period in seconds, 0 to read at
+     *   every iteration as registerReader(String, DataType).
+     *  @return The reader handle, to be passed to readBatchedOpcValue().
+     */
+    public OPCUATagHandle registerReader(String sNodeName, DataType tType, double dSamplePeriod)
+    {
+        long periodMillis = Math.round(dSamplePeriod * 1000.0);
+        if (periodMillis <= 0) {
+            return registerReader(sNodeName, tType);
+        }
+        OPCUAReadBatcher pollClass;
+        synchronized (this) {
+            pollClass = pollClasses.get(periodMillis);
+            if (pollClass == null) {
+                pollClass = new OPCUAReadBatcher(this, periodMillis * 1000000L);
+                pollClasses.put(periodMillis, pollClass);
+            }
+        }
+        return pollClass.register(sNodeName, tType);
+    }
+
+    /** Read the OPC-UA node value of a registered reader. The first reader
+     *  of an iteration reads all registered nodes from the server at once;
+     *  readers with a sample period read with their poll class.
+     *  @param handle The reader handle returned by registerReader().
+     *  @param modelTime The model time of the reader firing.
+     *  @return The node value.
+     *  @exception IllegalActionException If client is not connected or the read fails.
+     */
+    public double readBatchedOpcValue(OPCUATagHandle handle, Time modelTime) throws IllegalActionException
+    {
+        OPCUAReadBatcher batcher = handle.batcher != null ? handle.batcher : readBatcher;
+        return batcher.read(handle, modelTime);
+    }
+
+    /** Start reading the nodes of the readers registered with
+     *  registerPrefetchedReader() in the background, for the next
+     *  iteration. The first readBatchedOpcValue() of a prefetched reader in
+     *  the next iteration takes this result instead of sending a new
+     *  request, unless it is older than prefetchMaxAge milliseconds. Calls
+     *  made while a prefetch is pending are ignored; other readers are
+     *  never prefetched.
+     *  <p>
+     *  Nothing is prefetched in Record or Replay mode: whether a prefetch
+     *  is taken or discarded depends on the wall clock, and a discarded one
+     *  would consume replayed values, so the reads would not be reproducible.
+     *  @exception IllegalActionException If the parameters are invalid.
+     */
+    public void prefetchBatchedOpcValues() throws IllegalActionException
+    {
+        if (isTrafficLogged()) {
+            return;
+        }
+        prefetchBatcher.prefetch(((DoubleToken) prefetchMaxAge.getToken()).doubleValue());
+    }
+
+    /** Register a writer of the specified OPC-UA node. The node is checked
+     *  against the server at initialize.
+     *  @param sNodeName OPC-UA node name.
+     *  @param tType The node data type (analog/accumulator/status).
+     *  @return The writer handle, to be passed to writeOpcValue() or queueOpcValue().
+     */
+    public synchronized OPCUATagHandle registerWriter(String sNodeName, DataType tType)
+    {
+        OPCUATagHandle handle = new OPCUATagHandle(sNodeName, tType, new OPCUANode(sNodeName, tType), -1);
+        writeHandles.add(handle);
+        return handle;
+    }
+
+    /** Add the specified OPC-UA node to the manager subscription. The
+     *  monitored items are created at initialize, once all readers of the
+     *  model have been preinitialized.
+     *  @param sNodeName OPC-UA node name.
+     *  @param tType The node data type (analog/accumulator/status).
+     */
+    public void subscribeOpcNode(String sNodeName, DataType tType)
+    {
+        subscription.add(sNodeName, tType);
+    }
+
+    /** Add the subscription of an event-driven actor. It is created at
+     *  initialize, with the publishing and sampling intervals of the
+     *  manager, created again when the session reconnects, and closed at
+     *  wrapup. It is not created when replaying traffic.
+     *  @param monitor The subscription, not started.
+     */
+    synchronized void addEventMonitor(OPCUAEventMonitor monitor)
+    {
+        eventMonitors.add(monitor);
+    }
+
+    /** Return the latest value notified by the server for a subscribed
+     *  node. No request is sent to the server.
+     *  @param sNodeName OPC-UA node name.
+     *  @return The node value.
+     *  @exception IllegalActionException If the node is not subscribed, its
+     *   value has Bad quality, or is stale: the session reconnected and the
+     *   subscription was not created again yet.
+     */
+    public double readSubscribedOpcValue(String sNodeName) throws IllegalActionException
+    {
+        OPCUATrafficLog log = traffic;
+        if (log != null && !log.isRecording()) {
+            return replayValue(log, sNodeName).getValue();
+        }
+        OPCUASubscription.LatestValue latest = subscription.get(sNodeName);
+        if (latest == null) {
+            throw new IllegalActionException(this, "Node " + sNodeName + " is not subscribed.");
+        }
+        double dValue = latest.value;
+        boolean good = latest.good;
+        if (log != null) {
+            try {
+                log.record(sNodeName, latest.timestamp, dValue, good ? 0 : 1);
+            } catch (IOException e) {
+                throw new IllegalActionException(this, e, "Failed recording to " + log.getFile());
+            }
+        }
+        if (latest.stale) {
+            throw new IllegalActionException(this, "Value of node " + sNodeName
+                    + " is stale: the subscription is being created again after a reconnection.");
+        }
+        if (!good) {
+            throw new IllegalActionException(this, "Value of node " + sNodeName + " has Bad quality.");
+        }
+        return dValue;
+    }
+
+    /** Read several OPC-UA nodes in a single request, or in concurrent
+     *  requests if they exceed readBatchSize or the server operation limits.
+     *  @param nodes The nodes to be read.
+     *  @return The values, indexed by node.
+     *  @exception IllegalActionException If client is not connected or the read fails.
+     */
+    public Map<OPCUANode, OPCUAValue> readOpcNodes(List<OPCUANode> nodes) throws IllegalActionException
+    {
+        return readOpcNodes(nodes.toArray(new OPCUANode[nodes.size()]));
+    }
+
+    /** Read several OPC-UA nodes in a single request. Nodes beyond
+     *  readBatchSize (lowered to the server MaxNodesPerRead), or the
+     *  message size, are split in chunks read concurrently. Callers pass
+     *  all their nodes: this is the only place reads are split.
+     *  @param nodes The nodes to be read.
+     *  @return The values, indexed by node.
+     *  @exception IllegalActionException If client is not connected or the read fails.
+     */
+    public Map<OPCUANode, OPCUAValue> readOpcNodes(OPCUANode[] nodes) throws IllegalActionException
+    {
+        OPCUATrafficLog log = traffic;
+        if (log != null && !log.isRecording()) {
+            Map<OPCUANode, OPCUAValue> result = new HashMap<OPCUANode, OPCUAValue>();
+            for (OPCUANode node : nodes) {
+                result.put(node, replayValue(log, node.getTagName()));
+            }
+            return result;
+        }
+        OPCUAOperationLimits limits = getOperationLimits();
+        List<List<OPCUANode>> chunks = limits.split(Arrays.asList(nodes), getReadBatchSize(),
+                node -> OPCUAOperationLimits.estimateBytes(node.getTagName()));
+        if (chunks.size() <= 1) {
+            return readOpcChunk(nodes, log);
+        }
+        Map<OPCUANode, OPCUAValue> result = new HashMap<OPCUANode, OPCUAValue>();
+        for (Map<OPCUANode, OPCUAValue> part : OPCUAOperationLimits.sendConcurrently(chunks,
+                chunk -> readOpcChunk(chunk.toArray(new OPCUANode[chunk.size()]), log), getAsyncExecutor())) {
+            result.putAll(part);
+        }
+        return result;
+    }
+
+    /** Read nodes that fit in a single request.
+     */
+    private Map<OPCUANode, OPCUAValue> readOpcChunk(OPCUANode[] nodes, OPCUATrafficLog log) throws IllegalActionException
+    {
+        Map<OPCUANode, OPCUAValue> result = null;
+        long start = System.nanoTime();
+        // A request failing on the active server is sent once more if the
+        // session failed over to a standby server.
+        for (boolean retry = true; result == null; retry = false) {
+            OPCUASessionRegistry.ClientHandle handle = acquireConnectedClient();
+            try {
+                result = handle.client.readData(nodes);
+            } catch (AppException | OPCUAConnectionException e) {
+                stats.recordReadFailure(e);
+                if (!getSession().connectionLost() || !retry) {
+                    throw new IllegalActionException(this, e, "Failed reading " + nodes.length + " nodes from server.");
+                }
+            } finally {
+                handle.release();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long tagLength = 0;
+        for (OPCUANode node : nodes) {
+            tagLength += node.getTagName().length();
+        }
+        stats.recordRead(elapsed, nodes.length, OPCUAManagerStats.estimateBytes(tagLength, nodes.length));
+        if (log != null) {
+            recordValues(log, result);
+        }
+        return result;
+    }
+
+    /** Return the next value of a node recorded in the traffic log.
+     */
+    private OPCUAValue replayValue(OPCUATrafficLog log, String sNodeName) throws IllegalActionException
+    {
+        OPCUATrafficLog.Entry entry = new OPCUATrafficLog.Entry();
+        if (!log.next(sNodeName, entry)) {
+            throw new IllegalActionException(this, "No more values of " + sNodeName + " in " + log.getFile());
+        }
+        return new OPCUAValue(new Date(entry.timestamp), entry.value, entry.quality);
+    }
+
+    /** Append the values read from the server to the traffic log.
+     */
+    private void recordValues(OPCUATrafficLog log, Map<OPCUANode, OPCUAValue> values) throws IllegalActionException
+    {
+        try {
+            for (Map.Entry<OPCUANode, OPCUAValue> entry : values.entrySet()) {
+                OPCUAValue value = entry.getValue();
+                Date timestamp = value.getTimestamp();
+                log.record(entry.getKey().getTagName(), timestamp != null ? timestamp.getTime() : System.currentTimeMillis(),
+                        value.getValue(), value.getQuality());
+            }
+        } catch (IOException e) {
+            throw new IllegalActionException(this, e, "Failed recording to " + log.getFile());
+        }
+    }
+
+    /** Return the maximum number of nodes per read request: readBatchSize,
+     *  or the server MaxNodesPerRead if lower.
+     */
+    public int getReadBatchSize() throws IllegalActionException
+    {
+        return getOperationLimits().limitRead(((IntToken) readBatchSize.getToken()).intValue());
+    }
+
+    /** Return the operation limits of the server, cached by the session,
+     *  or no limit if it is not connected yet.
+     */
+    OPCUAOperationLimits getOperationLimits()
+    {
+        OPCUASessionRegistry.Session current = session;
+        return current != null ? current.getOperationLimits() : OPCUAOperationLimits.NONE;
+    }
+
   
     /** Write the specified OPC-UA node value
      *  @param sNodeName OPC-UA node name.
      *  @param DataType The node data type (analog/accumulator/status).
      *  @return The node value.
-     *  @exception OPCUAConnectionException If no OPC-UA manager is found, or client is not connected.
+     *  @exception IllegalActionException If client is not connected (OPCUANotConnectedException) or the write fails.
      */   
     public void writeOpcValue(String sNodeName, DataType dataType, double value) throws AppException, IllegalActionException
     {
@@ -218,83 +892,901 @@ public class OPCUAConnectionManager extends TypedAtomicActor
         OPCUAValue val = new OPCUAValue(new Date(), value, 0);
         Map<OPCUANode, OPCUAValue> writeMap = new HashMap<OPCUANode, OPCUAValue>();                       
         writeMap.put(node, val);
+        if (isReplaying()) {
+            return;
+        }
+        if (journal != null) {
+            writeOpcNodes(writeMap);
+            return;
+        }
+        // Sent once more if the session failed over, as the batched writes.
+        sendOpcChunk(writeMap);
+    }
+
+    /** Write the OPC-UA node value of a registered writer. The node and
+     *  the request map of the handle are reused; the value and its
+     *  timestamp are new at each write, since the journal may keep them.
+     *  @param handle The writer handle returned by registerWriter().
+     *  @param value The value to be written.
+     *  @exception IllegalActionException If client is not connected or the write fails.
+     */
+    public void writeOpcValue(OPCUATagHandle handle, double value) throws IllegalActionException
+    {
+        synchronized (handle) {
+            handle.writeMap.put(handle.node, new OPCUAValue(new Date(), value, 0));
+            writeOpcNodes(handle.writeMap);
+        }
+    }
+
+    /** Queue a write of the OPC-UA node value of a registered writer. The
+     *  value is sent later by the manager write queue, together with the
+     *  other queued values. Values of a failed flush are queued again;
+     *  those still unwritten at wrapup make it fail.
+     *  @param handle The writer handle returned by registerWriter().
+     *  @param value The value to be written.
+     *  @exception IllegalActionException If the queue is full and
+     *   writeQueueFullPolicy is "Fail".
+     */
+    public void queueOpcValue(OPCUATagHandle handle, double value) throws IllegalActionException
+    {
+        getWriteQueue().offer(handle, value);
+    }
+
+    /** Write several OPC-UA nodes in a single request. With journalWrites,
+     *  values that do not reach the server (OPCUANotConnectedException),
+     *  and all values while the journal holds earlier ones, are appended
+     *  to the journal instead.
+     *  @param writeMap The values, indexed by node.
+     *  @exception IllegalActionException If client is not connected or the
+     *   server rejects the write, or with journalWrites, if the server
+     *   rejects it or the journal is full.
+     */
+    public void writeOpcNodes(Map<OPCUANode, OPCUAValue> writeMap) throws IllegalActionException
+    {
+        if (isReplaying()) {
+            return;
+        }
+        OPCUAWriteJournal log = journal;
+        if (log == null) {
+            sendOpcNodes(writeMap);
+            return;
+        }
+        if (log.isEmpty()) {
+            try {
+                sendOpcNodes(writeMap);
+                return;
+            } catch (OPCUANotConnectedException e) {
+                // Only writes that did not reach the server are journaled:
+                // a value the server rejects is reported to the writer.
+                System.out.println("OPCUAConnectionManager::writeOpcNodes: Write failed, journaling to " + log.getFile());
+            }
+        }
+        // Behind the values already journaled, to keep the order of the writes.
         try {
-            client.writeData(writeMap);
-        } catch (Exception e) {
-            throw new IllegalActionException(this, "Client is not connected to a server.");
+            log.append(writeMap);
+        } catch (IOException e) {
+            throw new IllegalActionException(this, e, "Failed journaling " + writeMap.size() + " values.");
+        }
+        if (isConnected()) {
+            drainJournalLater(log);
+        }
+    }
+
+    /** Send several OPC-UA node values to the server in a single request,
+     *  or in concurrent requests if they exceed writeBatchSize (lowered to
+     *  the server MaxNodesPerWrite) or the message size.
+     */
+    private void sendOpcNodes(Map<OPCUANode, OPCUAValue> writeMap) throws IllegalActionException
+    {
+        OPCUAOperationLimits limits = getOperationLimits();
+        List<List<Map.Entry<OPCUANode, OPCUAValue>>> chunks = limits.split(
+                new ArrayList<Map.Entry<OPCUANode, OPCUAValue>>(writeMap.entrySet()), getWriteBatchSize(),
+                entry -> OPCUAOperationLimits.estimateBytes(entry.getKey().getTagName()));
+        if (chunks.size() <= 1) {
+            sendOpcChunk(writeMap);
+            return;
+        }
+        OPCUAOperationLimits.sendConcurrently(chunks, chunk -> {
+            Map<OPCUANode, OPCUAValue> part = new LinkedHashMap<OPCUANode, OPCUAValue>();
+            for (Map.Entry<OPCUANode, OPCUAValue> entry : chunk) {
+                part.put(entry.getKey(), entry.getValue());
+            }
+            sendOpcChunk(part);
+            return null;
+        }, getAsyncExecutor());
+    }
+
+    /** Send node values that fit in a single request.
+     */
+    private void sendOpcChunk(Map<OPCUANode, OPCUAValue> writeMap) throws IllegalActionException
+    {
+        long start = System.nanoTime();
+        for (boolean retry = true, written = false; !written; retry = false) {
+            OPCUASessionRegistry.ClientHandle handle = acquireConnectedClient();
+            try {
+                handle.client.writeData(writeMap);
+                written = true;
+            } catch (AppException | OPCUAConnectionException e) {
+                stats.recordWriteFailure(e);
+                boolean lost = e instanceof OPCUAConnectionException || !handle.client.isConnected();
+                if (!getSession().connectionLost() || !retry) {
+                    if (lost) {
+                        throw new OPCUANotConnectedException(this, e);
+                    }
+                    throw new IllegalActionException(this, e, "Failed writing " + writeMap.size() + " nodes to server.");
+                }
+            } finally {
+                handle.release();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long tagLength = 0;
+        for (OPCUANode node : writeMap.keySet()) {
+            tagLength += node.getTagName().length();
         }
+        stats.recordWrite(elapsed, writeMap.size(), OPCUAManagerStats.estimateBytes(tagLength, writeMap.size()));
+    }
+
+    /** Read the specified OPC-UA node value without blocking the caller.
+     *  @param sNodeName OPC-UA node name.
+     *  @param tType The node data type (analog/accumulator/status).
+     *  @return A future completed with the node value, or exceptionally
+     *   if the read fails.
+     */
+    public CompletableFuture<Double> readOpcValueAsync(String sNodeName, DataType tType)
+    {
+        return getAsyncExecutor().submit(() -> readOpcValue(sNodeName, tType));
+    }
+
+    /** Write the specified OPC-UA node value without blocking the caller.
+     *  @param sNodeName OPC-UA node name.
+     *  @param tType The node data type (analog/accumulator/status).
+     *  @param value The value to be written.
+     *  @return A future completed when the server accepted the value, or
+     *   exceptionally if the write fails.
+     */
+    public CompletableFuture<Void> writeOpcValueAsync(String sNodeName, DataType tType, double value)
+    {
+        return getAsyncExecutor().submit(() -> {
+            writeOpcValue(sNodeName, tType, value);
+            return null;
+        });
+    }
+
+    /** Read several OPC-UA nodes without blocking the caller. The nodes are
+     *  split as by readOpcNodes(), in requests sent concurrently.
+     *  @param nodes The nodes to be read.
+     *  @return A future completed with the values, indexed by node, or
+     *   exceptionally if any request fails.
+     *  @exception IllegalActionException If readBatchSize is invalid.
+     */
+    public CompletableFuture<Map<OPCUANode, OPCUAValue>> readOpcNodesAsync(List<OPCUANode> nodes) throws IllegalActionException
+    {
+        // Fails here rather than in the future if readBatchSize is invalid.
+        getReadBatchSize();
+        final OPCUANode[] all = nodes.toArray(new OPCUANode[nodes.size()]);
+        // The chunks are sent from the executor thread too, so this does not deadlock.
+        return getAsyncExecutor().submit(() -> readOpcNodes(all));
+    }
+
+    /** Write several OPC-UA nodes without blocking the caller. The values
+     *  are split in requests of writeBatchSize nodes, sent concurrently.
+     *  @param writeMap The values, indexed by node.
+     *  @return A future completed when all values were written, or
+     *   exceptionally if any request fails.
+     *  @exception IllegalActionException If writeBatchSize is invalid.
+     */
+    public CompletableFuture<Void> writeOpcNodesAsync(Map<OPCUANode, OPCUAValue> writeMap) throws IllegalActionException
+    {
+        OPCUAAsyncExecutor executor = getAsyncExecutor();
+        int chunk = getWriteBatchSize();
+        List<CompletableFuture<Void>> parts = new ArrayList<CompletableFuture<Void>>();
+        Map<OPCUANode, OPCUAValue> part = new HashMap<OPCUANode, OPCUAValue>();
+        for (Map.Entry<OPCUANode, OPCUAValue> entry : writeMap.entrySet()) {
+            part.put(entry.getKey(), entry.getValue());
+            if (part.size() == chunk) {
+                parts.add(submitWrite(executor, part));
+                part = new HashMap<OPCUANode, OPCUAValue>();
+            }
+        }
+        if (!part.isEmpty()) {
+            parts.add(submitWrite(executor, part));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()]));
+    }
+
+    private CompletableFuture<Void> submitWrite(OPCUAAsyncExecutor executor, final Map<OPCUANode, OPCUAValue> part)
+    {
+        return executor.submit(() -> {
+            writeOpcNodes(part);
+            return null;
+        });
+    }
+
+    /** Return the executor of the asynchronous requests, creating it with
+     *  the current parameters if needed.
+     */
+    private synchronized OPCUAAsyncExecutor getAsyncExecutor()
+    {
+        if (async == null) {
+            int concurrency = 16;
+            boolean virtual = false;
+            try {
+                concurrency = ((IntToken) asyncConcurrency.getToken()).intValue();
+                virtual = asyncExecutor.stringValue().equals("Virtual");
+            } catch (IllegalActionException e) {
+                System.out.println("OPCUAConnectionManager::getAsyncExecutor: Invalid parameters, using defaults.");
+            }
+            async = new OPCUAAsyncExecutor(concurrency, virtual, "OPCUAConnectionManager-async");
+        }
+        return async;
+    }
+
+    /** Stop the executor of the asynchronous requests, waiting for the
+     *  requests already submitted. The wait is done outside the manager
+     *  lock, which the requests may need.
+     */
+    private void shutdownAsyncExecutor()
+    {
+        OPCUAAsyncExecutor executor;
+        synchronized (this) {
+            executor = async;
+            async = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /** Return the maximum number of nodes per write request: writeBatchSize,
+     *  or the server MaxNodesPerWrite if lower.
+     */
+    public int getWriteBatchSize() throws IllegalActionException
+    {
+        return getOperationLimits().limitWrite(((IntToken) writeBatchSize.getToken()).intValue());
+    }
+
+    /** Return the write queue, starting it with the current parameters if needed.
+     */
+    private synchronized OPCUAWriteQueue getWriteQueue() throws IllegalActionException
+    {
+        if (writeQueue == null) {
+            OPCUAWriteQueue.FullPolicy policy;
+            switch (writeQueueFullPolicy.stringValue()) {
+              case "Block":
+                policy = OPCUAWriteQueue.FullPolicy.BLOCK;
+                break;
+              case "DropOldest":
+                policy = OPCUAWriteQueue.FullPolicy.DROP_OLDEST;
+                break;
+              case "Fail":
+                policy = OPCUAWriteQueue.FullPolicy.FAIL;
+                break;
+              default:
+                throw new IllegalActionException(this, "writeQueueFullPolicy invalid.");
+            }
+            writeQueue = new OPCUAWriteQueue(this,
+                    ((IntToken) writeQueueCapacity.getToken()).intValue(),
+                    (long) ((DoubleToken) writeFlushInterval.getToken()).doubleValue(),
+                    policy);
+        }
+        return writeQueue;
     }
     
     public boolean isConnected()
     {
-        return client.isConnected();
+        return getClient().isConnected();
     }
 
+    /** Check the nodes registered by the readers and writers against the
+     *  server, create the monitored items of the nodes subscribed by the
+     *  readers and read their initial values, then open the traffic log.
+     *  In Replay mode only the traffic log is opened.
+     *  @exception IllegalActionException If a node does not exist on the
+     *   server, the subscription cannot be created, or the traffic log
+     *   cannot be opened.
+     */
+    @Override
+    public void initialize() throws IllegalActionException
+    {
+        super.initialize();
 
-    /** Clones the manager.
-     *  @exception CloneNotSupportedException
+        if (isReplaying()) {
+            openTrafficLog();
+            return;
+        }
+
+        // The limits of the server were read when preinitialize waited for the session.
+        resolveTags();
+        openWriteJournal();
+
+        if (!subscription.isEmpty()) {
+            try {
+                subscription.start(getSession().getNativeSession(), nodeIdFormat.stringValue(),
+                        ((DoubleToken) publishingInterval.getToken()).doubleValue(),
+                        ((DoubleToken) samplingInterval.getToken()).doubleValue());
+            } catch (Exception e) {
+                throw new IllegalActionException(this, e, "Failed creating subscription.");
+            }
+            seedSubscription();
+        }
+
+        List<OPCUAEventMonitor> monitors;
+        synchronized (this) {
+            monitors = new ArrayList<OPCUAEventMonitor>(eventMonitors);
+        }
+        for (OPCUAEventMonitor monitor : monitors) {
+            try {
+                monitor.start(getSession().getNativeSession(), nodeIdFormat.stringValue(),
+                        ((DoubleToken) publishingInterval.getToken()).doubleValue(),
+                        ((DoubleToken) samplingInterval.getToken()).doubleValue());
+            } catch (Exception e) {
+                throw new IllegalActionException(this, e, "Failed creating event subscription.");
+            }
+        }
+
+        // Opened last, so that only the reads of the run are recorded.
+        openTrafficLog();
+    }
+
+    /** Fill the subscription table before the first notification arrives,
+     *  so that readers never have to wait for the server.
+     */
+    private void seedSubscription() throws IllegalActionException
+    {
+        List<OPCUANode> nodes = new ArrayList<OPCUANode>();
+        for (Map.Entry<String, DataType> entry : subscription.getTags().entrySet()) {
+            nodes.add(new OPCUANode(entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<OPCUANode, OPCUAValue> entry : readOpcNodes(nodes).entrySet()) {
+            subscription.seed(entry.getKey().getTagName(), entry.getValue().getValue());
+        }
+    }
+
+    /** Open the traffic log for recording or replay, as set by trafficMode.
+     */
+    private void openTrafficLog() throws IllegalActionException
+    {
+        String sMode = trafficMode.stringValue();
+        if (sMode.equals("Live")) {
+            return;
+        }
+        File file = trafficLog.asFile();
+        if (file == null) {
+            throw new IllegalActionException(this, "trafficLog must be set when trafficMode is " + sMode + ".");
+        }
+        try {
+            if (sMode.equals("Record")) {
+                traffic = OPCUATrafficLog.create(file);
+            } else if (sMode.equals("Replay")) {
+                traffic = OPCUATrafficLog.open(file);
+            } else {
+                throw new IllegalActionException(this, "trafficMode invalid.");
+            }
+        } catch (IOException e) {
+            throw new IllegalActionException(this, e, "Failed opening traffic log " + file);
+        }
+        System.out.println("OPCUAConnectionManager::initialize: " + sMode + " " + file);
+    }
+
+    /** Return true if the values read are recorded to or replayed from
+     *  the traffic log (Record or Replay mode).
+     */
+    boolean isTrafficLogged()
+    {
+        return traffic != null;
+    }
+
+    /** Return true if the values are served from the traffic log instead
+     *  of the server.
+     */
+    private boolean isReplaying() throws IllegalActionException
+    {
+        return trafficMode.stringValue().equals("Replay");
+    }
+
+    /** Open the write journal if journalWrites is set, and send the
+     *  values a previous run left in it.
+     */
+    private void openWriteJournal() throws IllegalActionException
+    {
+        if (!((BooleanToken) journalWrites.getToken()).booleanValue()) {
+            return;
+        }
+        File file = writeJournal.asFile();
+        if (file == null) {
+            throw new IllegalActionException(this, "writeJournal must be set when journalWrites is true.");
+        }
+        long maxBytes = ((IntToken) writeJournalMaxSize.getToken()).intValue() * 1024L * 1024L;
+        OPCUAWriteJournal log;
+        try {
+            log = OPCUAWriteJournal.open(file, maxBytes);
+        } catch (IOException e) {
+            throw new IllegalActionException(this, e, "Failed opening write journal " + file);
+        }
+        journal = log;
+        drainJournal(log);
+    }
+
+    /** Called by the session each time it (re)connects.
+     */
+    private void sessionConnected()
+    {
+        OPCUAWriteJournal log = journal;
+        if (log != null) {
+            drainJournalLater(log);
+        }
+        restartSubscriptionsLater();
+    }
+
+    /** Create the subscription of the readers and the event subscriptions
+     *  again if the native session changed, as monitored items do not
+     *  survive it, from a new thread so that the session does not wait for
+     *  them. A failed restart is tried again with backoff, until the next
+     *  reconnection or wrapup. The values of the readers are stale until
+     *  created again and seeded.
+     */
+    private void restartSubscriptionsLater()
+    {
+        final List<OPCUAEventMonitor> monitors;
+        final int restart;
+        synchronized (this) {
+            if (eventMonitors.isEmpty() && subscription.isEmpty()) {
+                return;
+            }
+            monitors = new ArrayList<OPCUAEventMonitor>(eventMonitors);
+            restart = ++subscriptionRestarts;
+        }
+        Thread restarter = new Thread(() -> {
+            boolean subscribed = false;
+            boolean seeded = true;
+            for (long delay = 1000; restart == subscriptionRestarts && session != null; delay = Math.min(delay * 2, 30000)) {
+                try {
+                    if (!subscribed) {
+                        seeded = !subscription.restart(getNativeSession());
+                        subscribed = true;
+                    }
+                    if (!seeded) {
+                        seedSubscription();
+                        seeded = true;
+                    }
+                } catch (Exception e) {
+                    System.out.println("OPCUAConnectionManager::restartSubscriptionsLater: Failed creating subscription, retrying in " + delay + " ms.");
+                    e.printStackTrace();
+                }
+                for (Iterator<OPCUAEventMonitor> left = monitors.iterator(); left.hasNext();) {
+                    try {
+                        left.next().restart(getNativeSession());
+                        left.remove();
+                    } catch (Exception e) {
+                        System.out.println("OPCUAConnectionManager::restartSubscriptionsLater: Failed creating event subscription, retrying in " + delay + " ms.");
+                        e.printStackTrace();
+                    }
+                }
+                if (subscribed && seeded && monitors.isEmpty()) {
+                    return;
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "OPCUASubscription-" + getName());
+        restarter.setDaemon(true);
+        restarter.start();
+    }
+
+    /** Send the journaled values from a new thread, so that neither the
+     *  writer nor the session waits for the journal to be drained.
+     */
+    private void drainJournalLater(final OPCUAWriteJournal log)
+    {
+        if (log.isEmpty() || log.drainLock.isLocked()) {
+            return;
+        }
+        Thread drainer = new Thread(() -> drainJournal(log), "OPCUAWriteJournal-" + getName());
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /** Send the journaled values to the server in batches of writeBatchSize,
+     *  in order, with only the last value of each node. Values journaled
+     *  meanwhile are sent too, until the journal is empty. If a batch does
+     *  not reach the server, it and the following ones stay in the journal;
+     *  a batch the server rejects is dropped, so that it cannot block the
+     *  others. Returns at once if another thread is draining the journal.
+     */
+    private void drainJournal(OPCUAWriteJournal log)
+    {
+        if (!log.drainLock.tryLock()) {
+            return;
+        }
+        int total = 0;
+        try {
+            while (!log.isEmpty()) {
+                long position = log.getPosition();
+                List<OPCUAWriteJournal.Entry> entries = log.readCompacted(position);
+                int chunk = getWriteBatchSize();
+                int sent = 0;
+                try {
+                    while (sent < entries.size()) {
+                        int end = Math.min(sent + chunk, entries.size());
+                        Map<OPCUANode, OPCUAValue> writeMap = new LinkedHashMap<OPCUANode, OPCUAValue>();
+                        for (OPCUAWriteJournal.Entry entry : entries.subList(sent, end)) {
+                            writeMap.put(new OPCUANode(entry.sTagName, entry.tType),
+                                    new OPCUAValue(new Date(entry.timestamp), entry.value, 0));
+                        }
+                        try {
+                            sendOpcNodes(writeMap);
+                        } catch (OPCUANotConnectedException e) {
+                            throw e;
+                        } catch (IllegalActionException e) {
+                            List<String> sTagNames = new ArrayList<String>();
+                            for (OPCUANode node : writeMap.keySet()) {
+                                sTagNames.add(node.getTagName());
+                            }
+                            System.out.println("OPCUAConnectionManager::drainJournal: Server rejected "
+                                    + writeMap.size() + " journaled values, dropped: " + sTagNames);
+                            e.printStackTrace();
+                        }
+                        sent = end;
+                    }
+                } finally {
+                    total += sent;
+                    log.replace(entries.subList(sent, entries.size()), position);
+                }
+            }
+            if (total > 0) {
+                System.out.println("OPCUAConnectionManager::drainJournal: Sent " + total + " journaled values.");
+            }
+        } catch (IOException | IllegalActionException e) {
+            System.out.println("OPCUAConnectionManager::drainJournal: Sent " + total + " journaled values, "
+                    + log.getFile() + " keeps the others until the next reconnection.");
+        } finally {
+            log.drainLock.unlock();
+        }
+    }
+
+    /** Send what can be sent of the journal and close it. The values left
+     *  stay in the file for the next run.
+     */
+    private void closeWriteJournal()
+    {
+        OPCUAWriteJournal log = journal;
+        journal = null;
+        if (log == null) {
+            return;
+        }
+        log.drainLock.lock();
+        try {
+            drainJournal(log);
+            if (!log.isEmpty()) {
+                System.out.println("OPCUAConnectionManager::wrapup: " + log.getPosition()
+                        + " bytes of writes kept in " + log.getFile() + " for the next run.");
+            }
+            log.close();
+        } finally {
+            log.drainLock.unlock();
+        }
+    }
+
+    /** Read all nodes registered by readers and writers with one batched
+     *  request, so that a misspelled tag fails the model before it runs.
+     */
+    private void resolveTags() throws IllegalActionException
+    {
+        Map<String, OPCUANode> nodes = new HashMap<String, OPCUANode>();
+        for (OPCUANode node : readBatcher.getNodes()) {
+            nodes.put(node.getTagName(), node);
+        }
+        for (OPCUANode node : prefetchBatcher.getNodes()) {
+            nodes.put(node.getTagName(), node);
+        }
+        synchronized (this) {
+            for (OPCUAReadBatcher pollClass : pollClasses.values()) {
+                for (OPCUANode node : pollClass.getNodes()) {
+                    nodes.put(node.getTagName(), node);
+                }
+            }
+            for (OPCUATagHandle handle : writeHandles) {
+                nodes.put(handle.sTagName, handle.node);
+            }
+        }
+        if (nodes.isEmpty()) {
+            return;
+        }
+
+        for (OPCUANode node : readOpcNodes(new ArrayList<OPCUANode>(nodes.values())).keySet()) {
+            nodes.remove(node.getTagName());
+        }
+        if (!nodes.isEmpty()) {
+            throw new IllegalActionException(this, "Nodes not found on server " + sEndpointText + ": " + nodes.keySet());
+        }
+    }
+
+    /** Forget the readers registered during the run, delete the subscription
+     *  and flush the write queue.
+     *  @exception IllegalActionException If queued values could not be written.
      */
     @Override
-    public OPCUAConnectionManager clone(Workspace workspace) throws CloneNotSupportedException 
+    public void wrapup() throws IllegalActionException
     {
-        // TODO: fix this method...
-        OPCUAConnectionManager newObject = (OPCUAConnectionManager) super.clone(workspace);
-        OPCUAConnectOptions options = new OPCUAConnectOptions();
+        super.wrapup();
+        readBatcher.clear();
+        prefetchBatcher.clear();
+        subscription.clear();
+        synchronized (this) {
+            for (OPCUAReadBatcher pollClass : pollClasses.values()) {
+                pollClass.clear();
+            }
+            pollClasses.clear();
+            writeHandles.clear();
+            for (OPCUAEventMonitor monitor : eventMonitors) {
+                monitor.close();
+            }
+            eventMonitors.clear();
+        }
+
+        OPCUAWriteQueue queue;
+        synchronized (this) {
+            queue = writeQueue;
+            writeQueue = null;
+        }
         try {
-            String sEndptText = endpoint.getExpression(); //endpoint.getToken().toString().replace("\"", "");
-            
-            System.out.println("OPCUAConnectionManager::clone: Endpoint text=" + sEndptText);
-            
-            newObject.endpoint = new StringParameter(newObject, "endpoint");
-            newObject.endpoint.setExpression( sEndptText );
+            if (queue != null) {
+                queue.close();
+            }
+        } finally {
+            closeWriteJournal();
+        }
 
-            options.setServerEndpoint(sEndptText);
-            options.setApplicationURI(sEndptText);
-        } catch (Exception e) {
-            System.out.println("OPCUAConnectionManager::clone: Cannot set configuration options!");
-            e.printStackTrace();
+        OPCUATrafficLog log = traffic;
+        traffic = null;
+        if (log != null) {
+            log.close();
+        }
+        shutdownAsyncExecutor();
+        if (((BooleanToken) statsAtWrapup.getToken()).booleanValue()) {
+            System.out.println("OPCUAConnectionManager::wrapup: Statistics of " + getFullName() + "\n" + stats.getSummary());
+        }
+        releaseSession();
+    }
+
+    /** Return the session of the endpoint, acquiring it from the registry
+     *  if this manager holds none. Requests find the session without
+     *  locking; only its acquisition is synchronized.
+     */
+    OPCUASessionRegistry.Session getSession()
+    {
+        OPCUASessionRegistry.Session current = session;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (session == null) {
+                OPCUASessionRegistry.Session acquired = OPCUASessionRegistry.acquire(sEndpointText);
+                acquired.addStats(stats);
+                acquired.addConnectListener(connectListener);
+                stats.setEndpoint(sEndpointText);
+                session = acquired;
+            }
+            return session;
+        }
+    }
+
+    /** Return the client of the endpoint session.
+     */
+    private OPCUAClient getClient()
+    {
+        return getSession().getClient();
+    }
+
+    /** Return the Milo session of the endpoint, used for the services not
+     *  offered by the framework client (history, subscriptions).
+     */
+    OPCUANativeSession getNativeSession()
+    {
+        return getSession().getNativeSession();
+    }
+
+    /** Return the span (High - Low) of the EURange property of the
+     *  specified analog node, read from the server.
+     *  @param sNodeName OPC-UA node name.
+     *  @return The span, positive.
+     *  @exception IllegalActionException If the node has no valid EURange,
+     *   or the server cannot be read.
+     */
+    public double readEURange(String sNodeName) throws IllegalActionException
+    {
+        if (isReplaying()) {
+            throw new IllegalActionException(this, "The EURange of " + sNodeName + " cannot be read in Replay mode.");
         }
-        
         try {
-            newObject.reconnect();
+            return getNativeSession().readEURange(OPCUANativeSession.toNodeId(getNodeIdFormat(), sNodeName));
+        } catch (IllegalActionException e) {
+            throw e;
         } catch (Exception e) {
-            System.out.println("OPCUAConnectionManager::clone: Connection Failed!");
-            e.printStackTrace();
+            throw new IllegalActionException(this, e, "Failed reading the EURange of " + sNodeName + " from server.");
+        }
+    }
+
+    /** Return the format mapping tag names to node ids, e.g. "ns=2;s=%s".
+     */
+    String getNodeIdFormat() throws IllegalActionException
+    {
+        return nodeIdFormat.stringValue();
+    }
+
+    /** Borrow the client of the endpoint session if it is connected.
+     *  Otherwise the session is told to reconnect and an exception is thrown.
+     *  @return The client handle, to be released when the request is done.
+     *  @exception IllegalActionException If the client is not connected.
+     */
+    private OPCUASessionRegistry.ClientHandle acquireConnectedClient() throws IllegalActionException
+    {
+        OPCUASessionRegistry.Session current = getSession();
+        OPCUASessionRegistry.ClientHandle handle = current.acquireClient();
+        if (!handle.client.isConnected()) {
+            handle.release();
+            if (!current.connectionLost()) {
+                throw new OPCUANotConnectedException(this);
+            }
+            // Failed over to the standby server.
+            handle = current.acquireClient();
+            if (!handle.client.isConnected()) {
+                handle.release();
+                throw new OPCUANotConnectedException(this);
+            }
+        }
+        return handle;
+    }
+
+    /** Wait until the session of the endpoint is connected. Called by the
+     *  manager and its actors at preinitialize; the connection itself is
+     *  established in the background. Returns at once in Replay mode,
+     *  where no server is needed.
+     *  @exception IllegalActionException If the session does not connect
+     *   within connectTimeout seconds.
+     */
+    public void waitForConnection() throws IllegalActionException
+    {
+        if (isReplaying()) {
+            return;
+        }
+        double dTimeout = ((DoubleToken) connectTimeout.getToken()).doubleValue();
+        try {
+            getSession().awaitReady((long) (dTimeout * 1000.0));
+        } catch (TimeoutException e) {
+            stats.recordTimeout();
+            throw new IllegalActionException(this, "Could not connect to " + sEndpointText
+                    + " within " + dTimeout + " seconds.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalActionException(this, e, "Interrupted while connecting to " + sEndpointText);
+        }
+    }
+
+    /** Give back the endpoint session to the registry. The session is
+     *  closed if no other manager uses it.
+     */
+    private synchronized void releaseSession()
+    {
+        if (session != null) {
+            session.removeStats(stats);
+            session.removeConnectListener(connectListener);
+            OPCUASessionRegistry.release(session);
+            session = null;
         }
+    }
+
 
+    /** Clones the manager.
+     *  @exception CloneNotSupportedException
+     */
+    @Override
+    public OPCUAConnectionManager clone(Workspace workspace) throws CloneNotSupportedException 
+    {
+        // TODO: fix this method...
+        OPCUAConnectionManager newObject = (OPCUAConnectionManager) super.clone(workspace);
+        newObject.session = null;
+        newObject.readBatcher = new OPCUAReadBatcher(newObject);
+        newObject.prefetchBatcher = new OPCUAReadBatcher(newObject);
+        newObject.pollClasses = new HashMap<Long, OPCUAReadBatcher>();
+        newObject.writeHandles = new ArrayList<OPCUATagHandle>();
+        newObject.subscription = new OPCUASubscription();
+        newObject.eventMonitors = new ArrayList<OPCUAEventMonitor>();
+        newObject.writeQueue = null;
+        newObject.traffic = null;
+        newObject.journal = null;
+        newObject.connectListener = newObject::sessionConnected;
+        newObject.stats = new OPCUAManagerStats();
+        newObject.async = null;
+        newObject.nodeIndex = new OPCUANodeIndex(newObject::loadAddressSpace);
+
+        // The parameters are private, so NamedObj does not re-point them to
+        // the cloned attributes: they would still be those of this manager.
+        newObject.endpoint = (StringParameter) newObject.getAttribute("endpoint");
+        newObject.readBatchSize = (Parameter) newObject.getAttribute("readBatchSize");
+        newObject.prefetchMaxAge = (Parameter) newObject.getAttribute("prefetchMaxAge");
+        newObject.publishingInterval = (Parameter) newObject.getAttribute("publishingInterval");
+        newObject.samplingInterval = (Parameter) newObject.getAttribute("samplingInterval");
+        newObject.nodeIdFormat = (StringParameter) newObject.getAttribute("nodeIdFormat");
+        newObject.writeBatchSize = (Parameter) newObject.getAttribute("writeBatchSize");
+        newObject.writeQueueCapacity = (Parameter) newObject.getAttribute("writeQueueCapacity");
+        newObject.writeFlushInterval = (Parameter) newObject.getAttribute("writeFlushInterval");
+        newObject.writeQueueFullPolicy = (StringParameter) newObject.getAttribute("writeQueueFullPolicy");
+        newObject.browseCacheTTL = (Parameter) newObject.getAttribute("browseCacheTTL");
+        newObject.addressSpaceSnapshots = (FileParameter) newObject.getAttribute("addressSpaceSnapshots");
+        newObject.connectTimeout = (Parameter) newObject.getAttribute("connectTimeout");
+        newObject.statsAtWrapup = (Parameter) newObject.getAttribute("statsAtWrapup");
+        newObject.asyncConcurrency = (Parameter) newObject.getAttribute("asyncConcurrency");
+        newObject.asyncExecutor = (StringParameter) newObject.getAttribute("asyncExecutor");
+        newObject.trafficMode = (StringParameter) newObject.getAttribute("trafficMode");
+        newObject.trafficLog = (FileParameter) newObject.getAttribute("trafficLog");
+        newObject.journalWrites = (Parameter) newObject.getAttribute("journalWrites");
+        newObject.writeJournal = (FileParameter) newObject.getAttribute("writeJournal");
+        newObject.writeJournalMaxSize = (Parameter) newObject.getAttribute("writeJournalMaxSize");
+        System.out.println("OPCUAConnectionManager::clone: Endpoint text=" + newObject.endpoint.getExpression());
+
+        // The clone shares the session of the endpoint; it is acquired from
+        // the registry on first use.
         return newObject;
     }
 
     /** Closes current connection and creates new one to the endpoint.
+     *  If the endpoint did not change, the shared session is reconnected
+     *  for all managers using it; otherwise this manager releases the old
+     *  session, and the one of the new endpoint is acquired on first use.
+     *  The connection is established in the background, this method does
+     *  not block.
      *  @exception IllegalActionException
      */
     public void reconnect() throws IllegalActionException
     {
-        System.out.println("OPCUAConnectionManager::reconnect: Endpoint text=" + sEndpointText + " Client: " + client);
-        
-        if(client != null && client.isConnected()){
-            try {
-                client.disconnect();
-		    } finally {
-			    client = null;
-		    }
-            System.out.println("OPCUAConnectionManager::reconnect: Disconnecting client...");
-        }
+        System.out.println("OPCUAConnectionManager::reconnect: Endpoint text=" + sEndpointText + " Session: " + session);
 
-        client = new OPCUAClient();
-        OPCUAConnectOptions options = new OPCUAConnectOptions();
+        nodeIndex.refresh();
 
-        options.setServerEndpoint(sEndpointText);
-        options.setApplicationURI(sEndpointText);
-        try {
-            System.out.println("OPCUAConnectionManager::reconnect(): Trying to reconnect to endpoint: " + sEndpointText);
-            client.connect(2, options);
-        } catch (Exception e) { // FIXME - return failure or throw exception...
-            System.out.println("OPCUAConnectionManager::reconnect(): Failed reconnecting");
-            e.printStackTrace();
+        OPCUASessionRegistry.Session current;
+        synchronized (this) {
+            current = session;
+        }
+        if (current != null && current.getEndpoint().equals(sEndpointText)) {
+            current.reconnect();
+        } else {
+            releaseSession();
         }
+    }
 
+    /** Publish the statistics of the manager over JMX, acquire the session
+     *  of the endpoint for the run and wait for it to be connected.
+     *  @exception IllegalActionException If the session does not connect
+     *   within connectTimeout seconds.
+     */
+    @Override
+    public void preinitialize() throws IllegalActionException
+    {
+        super.preinitialize();
+        stats.register(getFullName());
+        waitForConnection();
     }
 
-}
+    /** Release the session and the JMX statistics when the manager is removed from the model.
+     *  @param container The proposed container.
+     *  @exception IllegalActionException If the superclass throws it.
+     *  @exception NameDuplicationException If the superclass throws it.
+     */
+    @Override
+    public void setContainer(CompositeEntity container)
+            throws IllegalActionException, NameDuplicationException
+    {
+        super.setContainer(container);
+        if (container == null) {
+            stats.unregister();
+            shutdownAsyncExecutor();
+            releaseSession();
+        }
+    }
 
+}
@@ -0,0 +1,286 @@
+/* Queues the data changes and events notified by an OPC-UA server for an event-driven actor.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUAEventMonitor.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscription;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.MonitoringMode;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.ContentFilter;
+import org.eclipse.milo.opcua.stack.core.types.structured.EventFilter;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoredItemCreateRequest;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoringParameters;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.SimpleAttributeOperand;
+
+/** The subscription of an event-driven actor. Unlike OPCUASubscription,
+ *  which only keeps the latest value of each node, every notification is
+ *  queued, and a listener is told when the queue stops being empty so that
+ *  the actor can ask its director to be fired.
+ *  <p>
+ *  Two monitored items may be created: one on the Value of a tag (data
+ *  changes) and one on an event notifier such as the Server object
+ *  ("i=2253"), whose events and alarms are reported with their Time,
+ *  SourceName, Message and Severity fields. The server keeps up to
+ *  queueSize data changes per publishing interval, so changes faster than
+ *  the publishing interval are not lost.
+ *  <p>
+ *  The queue is bounded: when it is full the oldest notification is
+ *  dropped and counted.
+ */
+class OPCUAEventMonitor
+{
+    private static final long REQUEST_TIMEOUT_SECONDS = 10;
+    private static final String[] EVENT_FIELDS = { "Time", "SourceName", "Message", "Severity" };
+
+    /** A data change or an event. */
+    static final class Notification
+    {
+        final boolean event;
+        final long timestamp;
+        final double value;
+        // Source and message of an event.
+        final String sMessage;
+        // Severity (1-1000) of an event, 0 if a data change is good, 1 otherwise.
+        final int severity;
+
+        Notification(boolean event, long timestamp, double value, String sMessage, int severity)
+        {
+            this.event = event;
+            this.timestamp = timestamp;
+            this.value = value;
+            this.sMessage = sMessage;
+            this.severity = severity;
+        }
+    }
+
+    private final String sTagName;
+    private final String sEventNotifier;
+    private final int queueSize;
+    private final int maxQueued;
+    private final ArrayDeque<Notification> queue = new ArrayDeque<Notification>();
+    private volatile Runnable listener;
+    private long dropped = 0;
+
+    private OPCUANativeSession session = null;
+    // Client the subscription was created with.
+    private OpcUaClient client = null;
+    private UaSubscription subscription = null;
+    // Arguments of the last start(), to start again after a reconnection.
+    private String sNodeIdFormat = null;
+    private double dPublishingInterval;
+    private double dSamplingInterval;
+
+    /** Create a monitor; nothing is sent to the server before start().
+     *  @param sTagName The tag whose data changes are queued, or null.
+     *  @param sEventNotifier The node id of the event notifier, or null.
+     *  @param queueSize The size of the server queue of the data changes.
+     *  @param maxQueued The maximum number of notifications queued.
+     *  @param listener Called, from a client thread, when a notification
+     *   is queued while the queue is empty.
+     */
+    OPCUAEventMonitor(String sTagName, String sEventNotifier, int queueSize, int maxQueued, Runnable listener)
+    {
+        this.sTagName = sTagName;
+        this.sEventNotifier = sEventNotifier;
+        this.queueSize = queueSize;
+        this.maxQueued = maxQueued;
+        this.listener = listener;
+    }
+
+    /** Create the subscription and its monitored items.
+     *  @param session The session where the subscription is created.
+     *  @param sNodeIdFormat The format mapping tag names to node ids.
+     *  @param dPublishingInterval The publishing interval, in milliseconds.
+     *  @param dSamplingInterval The sampling interval, in milliseconds.
+     *  @exception Exception If the subscription cannot be created.
+     */
+    synchronized void start(OPCUANativeSession session, String sNodeIdFormat, double dPublishingInterval, double dSamplingInterval) throws Exception
+    {
+        stop();
+        this.sNodeIdFormat = sNodeIdFormat;
+        this.dPublishingInterval = dPublishingInterval;
+        this.dSamplingInterval = dSamplingInterval;
+        client = session.getClient();
+        this.session = session;
+        subscription = client.getSubscriptionManager().createSubscription(dPublishingInterval)
+                .get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        List<MonitoredItemCreateRequest> requests = new ArrayList<MonitoredItemCreateRequest>(2);
+        List<String> sItems = new ArrayList<String>(2);
+        if (sTagName != null) {
+            ReadValueId readValueId = new ReadValueId(OPCUANativeSession.toNodeId(sNodeIdFormat, sTagName),
+                    AttributeId.Value.uid(), null, QualifiedName.NULL_VALUE);
+            MonitoringParameters parameters = new MonitoringParameters(uint(requests.size()), dSamplingInterval,
+                    null, uint(queueSize), true);
+            requests.add(new MonitoredItemCreateRequest(readValueId, MonitoringMode.Reporting, parameters));
+            sItems.add(sTagName);
+        }
+        if (sEventNotifier != null) {
+            SimpleAttributeOperand[] selectClauses = new SimpleAttributeOperand[EVENT_FIELDS.length];
+            for (int i = 0; i < EVENT_FIELDS.length; i++) {
+                selectClauses[i] = new SimpleAttributeOperand(Identifiers.BaseEventType,
+                        new QualifiedName[] { new QualifiedName(0, EVENT_FIELDS[i]) }, AttributeId.Value.uid(), null);
+            }
+            EventFilter filter = new EventFilter(selectClauses, new ContentFilter(null));
+            ReadValueId readValueId = new ReadValueId(NodeId.parse(sEventNotifier),
+                    AttributeId.EventNotifier.uid(), null, QualifiedName.NULL_VALUE);
+            MonitoringParameters parameters = new MonitoringParameters(uint(requests.size()), 0.0,
+                    ExtensionObject.encode(client.getStaticSerializationContext(), filter), uint(queueSize), true);
+            requests.add(new MonitoredItemCreateRequest(readValueId, MonitoringMode.Reporting, parameters));
+            sItems.add(sEventNotifier);
+        }
+
+        final boolean withValue = sTagName != null;
+        List<UaMonitoredItem> items = subscription.createMonitoredItems(TimestampsToReturn.Source, requests,
+                (item, index) -> {
+                    if (withValue && index == 0) {
+                        item.setValueConsumer((UaMonitoredItem it, DataValue dataValue) -> dataChanged(dataValue));
+                    } else {
+                        item.setEventConsumer((UaMonitoredItem it, Variant[] fields) -> eventNotified(fields));
+                    }
+                }).get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        for (int i = 0; i < items.size(); i++) {
+            if (!items.get(i).getStatusCode().isGood()) {
+                throw new Exception("Failed monitoring " + sItems.get(i) + ": " + items.get(i).getStatusCode());
+            }
+        }
+    }
+
+    /** Create the subscription again in a new session, if it was started
+     *  and does not live in that session, still connected, already.
+     *  @exception Exception If the subscription cannot be created.
+     */
+    synchronized void restart(OPCUANativeSession session) throws Exception
+    {
+        if (subscription != null && session == this.session && session.isConnectedWith(client)) {
+            return;
+        }
+        if (sNodeIdFormat != null && listener != null) {
+            start(session, sNodeIdFormat, dPublishingInterval, dSamplingInterval);
+        }
+    }
+
+    /** Delete the subscription, if any. Queued notifications are kept.
+     */
+    synchronized void stop()
+    {
+        if (subscription != null) {
+            try {
+                // A replaced session took its subscriptions with it: never
+                // connect again to delete them.
+                if (session.isConnectedWith(client)) {
+                    client.getSubscriptionManager().deleteSubscription(subscription.getSubscriptionId())
+                            .get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+            } catch (Exception e) {
+                System.out.println("OPCUAEventMonitor::stop: Failed deleting subscription.");
+                e.printStackTrace();
+            } finally {
+                subscription = null;
+                client = null;
+            }
+        }
+    }
+
+    /** Stop the subscription for good: the listener is no longer called
+     *  and restart() does nothing.
+     */
+    synchronized void close()
+    {
+        listener = null;
+        stop();
+        synchronized (queue) {
+            queue.clear();
+        }
+    }
+
+    /** Return and remove the oldest notification, or null if there is none.
+     */
+    Notification poll()
+    {
+        synchronized (queue) {
+            return queue.poll();
+        }
+    }
+
+    boolean isEmpty()
+    {
+        synchronized (queue) {
+            return queue.isEmpty();
+        }
+    }
+
+    /** Return the number of notifications dropped because the queue was full.
+     */
+    long getDropped()
+    {
+        synchronized (queue) {
+            return dropped;
+        }
+    }
+
+    private void dataChanged(DataValue dataValue)
+    {
+        long timestamp = dataValue.getSourceTime() != null
+                ? dataValue.getSourceTime().getJavaTime() : System.currentTimeMillis();
+        int quality = dataValue.getStatusCode() == null || dataValue.getStatusCode().isGood() ? 0 : 1;
+        offer(new Notification(false, timestamp, OPCUANativeSession.toDouble(dataValue), null, quality));
+    }
+
+    private void eventNotified(Variant[] fields)
+    {
+        Object time = fields[0].getValue();
+        Object source = fields[1].getValue();
+        Object message = fields[2].getValue();
+        Object severity = fields[3].getValue();
+        long timestamp = time instanceof DateTime ? ((DateTime) time).getJavaTime() : System.currentTimeMillis();
+        String sText = message instanceof LocalizedText ? ((LocalizedText) message).getText() : String.valueOf(message);
+        String sMessage = source != null ? source + ": " + sText : sText;
+        offer(new Notification(true, timestamp, 0.0, sMessage,
+                severity instanceof Number ? ((Number) severity).intValue() : 0));
+    }
+
+    private void offer(Notification notification)
+    {
+        boolean wasEmpty;
+        synchronized (queue) {
+            if (queue.size() >= maxQueued) {
+                queue.poll();
+                dropped++;
+            }
+            wasEmpty = queue.isEmpty();
+            queue.add(notification);
+        }
+        Runnable l = listener;
+        if (wasEmpty && l != null) {
+            l.run();
+        }
+    }
+}
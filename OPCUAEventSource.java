@@ -0,0 +1,238 @@
+/* An event-driven actor producing the data changes and events notified by an OPC-UA server.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUAEventSource.java
+
+ Check JVM version: javap -v OPCUAEventSource.class |findstr major
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+To include actors into the "Itaipu" library (no need of full build):
+1) Edit file "ptolemy/configs/basicActorLibrary.xml" and include the following line (if not already added):
+  <input source="ptolemy/actor/lib/Itaipu.xml"/>
+2) Create the "Itaipu.xml" file in the following location (if not already created):
+  ptolemy/actor/lib/Itaipu.xml
+3) Add the following lines inside the "<group>" tag:
+  <entity name="OPCUAEventSource" class="ptolemy.actor.lib.OPCUAEventSource">
+  </entity>
+
+ */
+package ptolemy.actor.lib;
+
+import ptolemy.actor.Director;
+import ptolemy.actor.TypedIOPort;
+import ptolemy.data.DoubleToken;
+import ptolemy.data.IntToken;
+import ptolemy.data.LongToken;
+import ptolemy.data.StringToken;
+import ptolemy.data.expr.Parameter;
+import ptolemy.data.expr.StringParameter;
+import ptolemy.data.type.BaseType;
+import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.NameDuplicationException;
+import ptolemy.kernel.util.Workspace;
+
+/** A source actor for the DE director. It does not poll the server: the
+ *  manager subscribes to the data changes of the Point and/or to the
+ *  events of an event notifier, and each notification makes the actor ask
+ *  the director to fire it at the current time (fireAtCurrentTime). Each
+ *  firing produces one notification, so plant events are seen within a
+ *  publishing interval of the manager and no CPU or network is used while
+ *  nothing happens.
+ *  <p>
+ *  Notifications are produced at the current model time of the director
+ *  when they are fired, not at their source time: the model time does not
+ *  follow the server clock, and a notification is never produced in the
+ *  model past. The source time is produced on timestamp.
+ *  <p>
+ *  The director must not stop when its event queue is empty
+ *  (stopWhenQueueIsEmpty false), and should be synchronized to real time.
+ */
+public class OPCUAEventSource extends OPCUAClient{
+
+    /** The new value of the Point, at each data change. */
+    public TypedIOPort output = null;
+
+    /** The quality of the new value, at each data change: 0 if good, 1
+     *  otherwise (uncertain or bad).
+     */
+    public TypedIOPort quality = null;
+
+    /** "SourceName: Message" of each event of the event notifier. */
+    public TypedIOPort event = null;
+
+    /** The severity (1-1000) of each event. */
+    public TypedIOPort severity = null;
+
+    /** The source time of each data change or event, in milliseconds
+     *  since the epoch.
+     */
+    public TypedIOPort timestamp = null;
+
+    /** Node id of the object whose events are produced, e.g. "i=2253" for
+     *  the Server object (all events of the server). Empty for none.
+     */
+    public StringParameter eventNotifier;
+
+    /** Number of data changes kept by the server between two publishing
+     *  intervals of the manager; changes beyond it are discarded, oldest first.
+     */
+    public Parameter queueSize;
+
+    /** Maximum number of notifications waiting to be produced. When the
+     *  model falls behind, the oldest ones are discarded.
+     */
+    public Parameter maxQueued;
+
+    private OPCUAEventMonitor monitor = null;
+
+    /** Construct an actor with the given container and name.
+     *  @param container The container.
+     *  @param name The name of this actor.
+     *  @exception IllegalActionException If the entity cannot be contained
+     *   by the proposed container.
+     *  @exception NameDuplicationException If the container already has an
+     *   actor with this name.
+     */
+    public OPCUAEventSource(CompositeEntity container, String name) throws NameDuplicationException, IllegalActionException {
+        super(container, name);
+
+        output = new TypedIOPort(this, "output", false, true);
+        output.setTypeEquals(BaseType.DOUBLE);
+
+        quality = new TypedIOPort(this, "quality", false, true);
+        quality.setTypeEquals(BaseType.INT);
+
+        event = new TypedIOPort(this, "event", false, true);
+        event.setTypeEquals(BaseType.STRING);
+
+        severity = new TypedIOPort(this, "severity", false, true);
+        severity.setTypeEquals(BaseType.INT);
+
+        timestamp = new TypedIOPort(this, "timestamp", false, true);
+        timestamp.setTypeEquals(BaseType.LONG);
+
+        eventNotifier = new StringParameter(this, "eventNotifier");
+        eventNotifier.setExpression("");
+        eventNotifier.addChoice("i=2253");
+
+        queueSize = new Parameter(this, "queueSize");
+        queueSize.setTypeEquals(BaseType.INT);
+        queueSize.setExpression("100");
+
+        maxQueued = new Parameter(this, "maxQueued");
+        maxQueued.setTypeEquals(BaseType.INT);
+        maxQueued.setExpression("10000");
+    }
+
+    @Override
+    public OPCUAEventSource clone(Workspace workspace) throws CloneNotSupportedException {
+        OPCUAEventSource newObject = (OPCUAEventSource) super.clone(workspace);
+        newObject.output.setTypeEquals(BaseType.DOUBLE);
+        newObject.quality.setTypeEquals(BaseType.INT);
+        newObject.event.setTypeEquals(BaseType.STRING);
+        newObject.severity.setTypeEquals(BaseType.INT);
+        newObject.timestamp.setTypeEquals(BaseType.LONG);
+        newObject.monitor = null;
+        return newObject;
+    }
+
+    /** Adds the subscription of this actor to the manager, which creates
+     *  it at initialize.
+     *  @exception IllegalActionException If neither Point nor eventNotifier
+     *   is set, or the superclass throws it.
+     */
+    @Override
+    public void preinitialize() throws IllegalActionException {
+        super.preinitialize();
+
+        OPCUAConnectionManager manager = getMyManager();
+        if (manager == null) {
+            throw new IllegalActionException(this, "Parameter OPCUAConnectionManager is not defined.");
+        }
+        String sTagName = getTagName() == null || getTagName().isEmpty() ? null : getTagName();
+        String sEventNotifier = eventNotifier.stringValue().trim().isEmpty() ? null : eventNotifier.stringValue().trim();
+        if (sTagName == null && sEventNotifier == null) {
+            throw new IllegalActionException(this, "Parameters Point and/or eventNotifier must be defined.");
+        }
+        int size = ((IntToken) queueSize.getToken()).intValue();
+        int max = ((IntToken) maxQueued.getToken()).intValue();
+        if (size < 1 || max < 1) {
+            throw new IllegalActionException(this, "queueSize and maxQueued must be positive.");
+        }
+        monitor = new OPCUAEventMonitor(sTagName, sEventNotifier, size, max, this::notificationQueued);
+        manager.addEventMonitor(monitor);
+    }
+
+    /** Produces the oldest notification received, if any: a data change
+     *  on output and quality, an event on event and severity, and its
+     *  source time on timestamp.
+     *  @exception IllegalActionException If sending fails.
+     */
+    @Override
+    public void fire() throws IllegalActionException {
+        super.fire();
+
+        OPCUAEventMonitor current = monitor;
+        OPCUAEventMonitor.Notification notification = current == null ? null : current.poll();
+        if (notification == null) {
+            return;
+        }
+        if (notification.event) {
+            event.send(0, new StringToken(notification.sMessage));
+            severity.send(0, new IntToken(notification.severity));
+        } else {
+            output.send(0, new DoubleToken(notification.value));
+            quality.send(0, new IntToken(notification.severity));
+        }
+        timestamp.send(0, new LongToken(notification.timestamp));
+    }
+
+    /** Asks to be fired again at the current time if notifications are
+     *  still waiting.
+     *  @return True if execution can continue into the next iteration.
+     *  @exception IllegalActionException If the director refuses the firing.
+     */
+    @Override
+    public boolean postfire() throws IllegalActionException {
+        OPCUAEventMonitor current = monitor;
+        if (current != null && !current.isEmpty()) {
+            getDirector().fireAtCurrentTime(this);
+        }
+        return super.postfire();
+    }
+
+    /** Stops the subscription.
+     *  @exception IllegalActionException If the superclass throws it.
+     */
+    @Override
+    public void wrapup() throws IllegalActionException {
+        super.wrapup();
+        OPCUAEventMonitor current = monitor;
+        monitor = null;
+        if (current != null) {
+            current.close();
+            if (current.getDropped() > 0) {
+                System.out.println("OPCUAEventSource::wrapup: " + getFullName() + " discarded "
+                        + current.getDropped() + " notifications (maxQueued reached).");
+            }
+        }
+    }
+
+    /** Called from a client thread when a notification arrives while none
+     *  is waiting.
+     */
+    private void notificationQueued() {
+        Director director = getDirector();
+        if (director == null || monitor == null) {
+            return;
+        }
+        try {
+            director.fireAtCurrentTime(this);
+        } catch (IllegalActionException e) {
+            System.out.println("OPCUAEventSource::notificationQueued: Failed scheduling a firing of " + getFullName());
+            e.printStackTrace();
+        }
+    }
+
+}
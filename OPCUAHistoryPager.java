@@ -0,0 +1,252 @@
+/* Streams the history of an OPC-UA node page by page, prefetching the next page.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUAHistoryPager.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAHistoryReplay, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ByteString;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryData;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadResponse;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadRawModifiedDetails;
+
+/** Reads the raw history of one node over a time window with HistoryRead,
+ *  one page of at most pageSize values per request, following the
+ *  continuation points returned by the server. A background thread
+ *  fetches the next page while the actor consumes the current one. At most
+ *  three pages (current, prefetched, being received) are held in memory,
+ *  whatever the length of the window.
+ *  <p>
+ *  Samples of bad quality or without a numeric value are skipped; their
+ *  count is reported at close(). Each page is requested with the current
+ *  client of the session, so a session that reconnected is used as is
+ *  (the server then rejects the continuation point of the old one).
+ *  <p>
+ *  A request in flight is never interrupted, so that the continuation
+ *  point kept is always the last one the server handed out: close() waits
+ *  for it, then releases that point. The release asks for an empty window,
+ *  which a server ignores when releasing, but which keeps a server that
+ *  does not honor the release from handing out a new point.
+ */
+class OPCUAHistoryPager
+{
+    private static final long REQUEST_TIMEOUT_SECONDS = 30;
+
+    /** A page of history: source timestamps (ms) and values. */
+    private static final class Page
+    {
+        final long[] times;
+        final double[] values;
+
+        Page(long[] times, double[] values)
+        {
+            this.times = times;
+            this.values = values;
+        }
+    }
+
+    private static final Page END = new Page(new long[0], new double[0]);
+
+    private final OPCUANativeSession session;
+    private final NodeId nodeId;
+    private final ReadRawModifiedDetails details;
+    private final ReadRawModifiedDetails releaseDetails;
+    private final BlockingQueue<Object> pages = new ArrayBlockingQueue<Object>(1);
+    private final Thread prefetcher;
+    private volatile boolean closed = false;
+    private volatile ByteString continuationPoint = null;
+    // The client that handed out the continuation point.
+    private volatile OpcUaClient pointClient = null;
+    private volatile long skipped = 0;
+
+    private Page current = null;
+    private int position = 0;
+
+    /** Start streaming the history of a node.
+     *  @param session The session of the manager.
+     *  @param nodeId The node whose history is replayed.
+     *  @param start The start of the time window.
+     *  @param end The end of the time window.
+     *  @param pageSize The maximum number of values per request, positive.
+     */
+    OPCUAHistoryPager(OPCUANativeSession session, NodeId nodeId, Date start, Date end, int pageSize)
+    {
+        this.session = session;
+        this.nodeId = nodeId;
+        this.details = new ReadRawModifiedDetails(false, new DateTime(start), new DateTime(end), uint(pageSize), false);
+        this.releaseDetails = new ReadRawModifiedDetails(false, new DateTime(start), new DateTime(start), uint(pageSize), false);
+
+        prefetcher = new Thread(this::run, "OPCUAHistoryPager-" + nodeId);
+        prefetcher.setDaemon(true);
+        prefetcher.start();
+    }
+
+    /** Move to the next value of the history.
+     *  @return False if the window is exhausted.
+     *  @exception Exception If a HistoryRead request failed.
+     */
+    boolean next() throws Exception
+    {
+        position++;
+        while (current == null || position >= current.values.length) {
+            if (current == END) {
+                return false;
+            }
+            Object page = pages.take();
+            if (page instanceof Exception) {
+                current = END;
+                throw (Exception) page;
+            }
+            current = (Page) page;
+            position = 0;
+        }
+        return true;
+    }
+
+    /** Return the source time (ms since epoch) of the current value. */
+    long getTime()
+    {
+        return current.times[position];
+    }
+
+    /** Return the current value. */
+    double getValue()
+    {
+        return current.values[position];
+    }
+
+    /** Stop prefetching and release the continuation point on the server.
+     */
+    void close()
+    {
+        closed = true;
+        try {
+            prefetcher.join(TimeUnit.SECONDS.toMillis(REQUEST_TIMEOUT_SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ByteString point = continuationPoint;
+        OpcUaClient client = pointClient;
+        continuationPoint = null;
+        pointClient = null;
+        // A point of a previous connection is already gone with it.
+        if (point != null && point.isNotNull() && session.isConnectedWith(client)) {
+            try {
+                request(client, point, true);
+            } catch (Exception e) {
+                System.out.println("OPCUAHistoryPager::close: Failed releasing continuation point of " + nodeId);
+            }
+        }
+        pages.clear();
+        if (skipped > 0) {
+            System.out.println("OPCUAHistoryPager::close: " + skipped + " samples of " + nodeId
+                    + " skipped (bad quality or no numeric value).");
+        }
+    }
+
+    private void run()
+    {
+        try {
+            ByteString point = ByteString.NULL_VALUE;
+            do {
+                OpcUaClient client = session.getClient();
+                HistoryReadResult result = request(client, point, false);
+                HistoryData data = (HistoryData) result.getHistoryData().decode(client.getStaticEncodingContext());
+                DataValue[] dataValues = data.getDataValues() == null ? new DataValue[0] : data.getDataValues();
+                long[] times = new long[dataValues.length];
+                double[] values = new double[dataValues.length];
+                int count = 0;
+                for (DataValue dataValue : dataValues) {
+                    if (!isUsable(dataValue)) {
+                        skipped++;
+                        continue;
+                    }
+                    DateTime time = dataValue.getSourceTime() != null
+                            ? dataValue.getSourceTime() : dataValue.getServerTime();
+                    times[count] = time != null ? time.getJavaTime() : 0L;
+                    values[count] = OPCUANativeSession.toDouble(dataValue);
+                    count++;
+                }
+                if (count < dataValues.length) {
+                    times = Arrays.copyOf(times, count);
+                    values = Arrays.copyOf(values, count);
+                }
+                point = result.getContinuationPoint();
+                continuationPoint = point;
+                pointClient = client;
+                if (!offer(new Page(times, values))) {
+                    return;
+                }
+            } while (!closed && point != null && point.isNotNull());
+            if (!closed) {
+                continuationPoint = null;
+                offer(END);
+            }
+        } catch (Exception e) {
+            try {
+                offer(e);
+            } catch (InterruptedException ie) {
+                // Not interrupted by close(): the thread is ending anyway.
+            }
+        }
+    }
+
+    /** Queue a page, an exception or END for the actor.
+     *  @return False if the pager was closed meanwhile.
+     */
+    private boolean offer(Object page) throws InterruptedException
+    {
+        while (!closed) {
+            if (pages.offer(page, 100, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return true if the sample has a good or uncertain quality and a
+     *  numeric (or boolean) value.
+     */
+    private static boolean isUsable(DataValue dataValue)
+    {
+        if (dataValue.getStatusCode() != null && dataValue.getStatusCode().isBad()) {
+            return false;
+        }
+        Object value = dataValue.getValue() == null ? null : dataValue.getValue().getValue();
+        return value instanceof Number || value instanceof Boolean;
+    }
+
+    private HistoryReadResult request(OpcUaClient client, ByteString point, boolean release) throws Exception
+    {
+        HistoryReadValueId valueId = new HistoryReadValueId(nodeId, null, QualifiedName.NULL_VALUE, point);
+        HistoryReadResponse response = client.historyRead(release ? releaseDetails : details, TimestampsToReturn.Source, release,
+                Collections.singletonList(valueId)).get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        HistoryReadResult result = response.getResults()[0];
+        if (!release && result.getStatusCode().isBad()) {
+            throw new Exception("HistoryRead of " + nodeId + " failed: " + result.getStatusCode());
+        }
+        return result;
+    }
+}
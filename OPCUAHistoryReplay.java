@@ -0,0 +1,176 @@
+/* An actor that replays the recorded history of an OPC-UA node.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUAHistoryReplay.java
+
+ Check JVM version: javap -v OPCUAHistoryReplay.class |findstr major
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+To include actors into the "Itaipu" library (no need of full build):
+1) Edit file "ptolemy/configs/basicActorLibrary.xml" and include the following line (if not already added):
+  <input source="ptolemy/actor/lib/Itaipu.xml"/>
+2) Create the "Itaipu.xml" file in the following location (if not already created):
+  ptolemy/actor/lib/Itaipu.xml
+3) Add the following lines inside the "<group>" tag:
+  <entity name="OPCUAHistoryReplay" class="ptolemy.actor.lib.OPCUAHistoryReplay">
+  </entity>
+
+ */
+package ptolemy.actor.lib;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import ptolemy.actor.TypedIOPort;
+import ptolemy.data.DoubleToken;
+import ptolemy.data.IntToken;
+import ptolemy.data.LongToken;
+import ptolemy.data.expr.Parameter;
+import ptolemy.data.expr.StringParameter;
+import ptolemy.data.type.BaseType;
+import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.NameDuplicationException;
+import ptolemy.kernel.util.Workspace;
+
+public class OPCUAHistoryReplay extends OPCUAClient{
+
+    /** The recorded values of the node, one per firing. Samples of bad
+     *  quality or without a numeric value are skipped.
+     */
+    public TypedIOPort output = null;
+
+    /** The source time of each value, in milliseconds since the epoch. */
+    public TypedIOPort timestamp = null;
+
+    /** Start of the replayed window, as "yyyy-MM-dd HH:mm:ss" (local time). */
+    public StringParameter startTime;
+
+    /** End of the replayed window, as "yyyy-MM-dd HH:mm:ss" (local time). */
+    public StringParameter endTime;
+
+    /** Maximum number of values requested from the server per HistoryRead. */
+    public Parameter pageSize;
+
+    private OPCUAHistoryPager pager = null;
+
+    /** Construct an actor with the given container and name.
+     *  @param container The container.
+     *  @param name The name of this actor.
+     *  @exception IllegalActionException If the entity cannot be contained
+     *   by the proposed container.
+     *  @exception NameDuplicationException If the container already has an
+     *   actor with this name.
+     */
+    public OPCUAHistoryReplay(CompositeEntity container, String name) throws NameDuplicationException, IllegalActionException {
+        super(container, name);
+
+        output = new TypedIOPort(this, "output", false, true);
+        output.setTypeEquals(BaseType.DOUBLE);
+
+        timestamp = new TypedIOPort(this, "timestamp", false, true);
+        timestamp.setTypeEquals(BaseType.LONG);
+
+        startTime = new StringParameter(this, "startTime");
+        startTime.setExpression("2023-01-01 00:00:00");
+
+        endTime = new StringParameter(this, "endTime");
+        endTime.setExpression("2023-01-02 00:00:00");
+
+        pageSize = new Parameter(this, "pageSize");
+        pageSize.setTypeEquals(BaseType.INT);
+        pageSize.setExpression("1000");
+    }
+
+    @Override
+    public OPCUAHistoryReplay clone(Workspace workspace) throws CloneNotSupportedException {
+        OPCUAHistoryReplay newObject = (OPCUAHistoryReplay) super.clone(workspace);
+        newObject.output.setTypeEquals(BaseType.DOUBLE);
+        newObject.timestamp.setTypeEquals(BaseType.LONG);
+        newObject.pager = null;
+        return newObject;
+    }
+
+    /** Starts streaming the history of the node and loads its first value.
+     *  @exception IllegalActionException If the history cannot be read or is empty.
+     */
+    @Override
+    public void initialize() throws IllegalActionException {
+        super.initialize();
+
+        OPCUAConnectionManager manager = getMyManager();
+        if (manager == null || getTagName() == null || getTagName().isEmpty()) {
+            throw new IllegalActionException(this, "Parameters OPCUAConnectionManager/Point are not defined.");
+        }
+        Date start = parseTime(startTime);
+        Date end = parseTime(endTime);
+        if (!end.after(start)) {
+            throw new IllegalActionException(this, "endTime must be after startTime.");
+        }
+        int size = ((IntToken) pageSize.getToken()).intValue();
+        if (size <= 0) {
+            throw new IllegalActionException(this, "pageSize must be positive.");
+        }
+
+        try {
+            pager = new OPCUAHistoryPager(manager.getNativeSession(),
+                    OPCUANativeSession.toNodeId(manager.getNodeIdFormat(), getTagName()), start, end, size);
+            if (!pager.next()) {
+                throw new IllegalActionException(this, "No history for " + getTagName() + " between "
+                        + startTime.stringValue() + " and " + endTime.stringValue());
+            }
+        } catch (IllegalActionException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalActionException(this, e, "Failed reading history of " + getTagName());
+        }
+    }
+
+    /** Produces the current value of the history and its time stamp.
+     *  @exception IllegalActionException If sending fails.
+     */
+    @Override
+    public void fire() throws IllegalActionException {
+        super.fire();
+
+        output.send(0, new DoubleToken(pager.getValue()));
+        timestamp.send(0, new LongToken(pager.getTime()));
+    }
+
+    /** Moves to the next value of the history.
+     *  @return False when the end of the window is reached.
+     *  @exception IllegalActionException If a HistoryRead request fails.
+     */
+    @Override
+    public boolean postfire() throws IllegalActionException {
+        boolean more;
+        try {
+            more = pager.next();
+        } catch (Exception e) {
+            throw new IllegalActionException(this, e, "Failed reading history of " + getTagName());
+        }
+        return super.postfire() && more;
+    }
+
+    /** Stops the prefetch and releases the server continuation point.
+     *  @exception IllegalActionException If the superclass throws it.
+     */
+    @Override
+    public void wrapup() throws IllegalActionException {
+        super.wrapup();
+        if (pager != null) {
+            pager.close();
+            pager = null;
+        }
+    }
+
+    private Date parseTime(StringParameter parameter) throws IllegalActionException {
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(parameter.stringValue());
+        } catch (ParseException e) {
+            throw new IllegalActionException(this, e, parameter.getName() + " must be formatted as yyyy-MM-dd HH:mm:ss");
+        }
+    }
+
+}
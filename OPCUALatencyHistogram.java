@@ -0,0 +1,127 @@
+/* A lock-free latency histogram with logarithmic buckets.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUALatencyHistogram.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Counts latencies (nanoseconds) in buckets in the manner of an HDR
+ *  histogram: values below 128 ns have one bucket each, and every power
+ *  of two above is split in 64 linear sub-buckets, so any value is kept
+ *  with a relative error below 1.6% over the whole long range, in a fixed
+ *  array of 3712 counters. Recording is lock-free and allocates nothing.
+ */
+class OPCUALatencyHistogram
+{
+    private static final int SUB_BUCKETS = 64;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR_LIMIT + 56 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Record one latency.
+     *  @param nanos The latency, in nanoseconds.
+     */
+    void record(long nanos)
+    {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(indexOf(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    long getCount()
+    {
+        return count.get();
+    }
+
+    long getMax()
+    {
+        return max.get();
+    }
+
+    double getMean()
+    {
+        long n = count.get();
+        return n == 0 ? 0.0 : (double) sum.get() / n;
+    }
+
+    /** Return the latency below which the specified fraction of the
+     *  recorded latencies fall, in nanoseconds (0 if nothing was recorded).
+     *  @param fraction A fraction between 0 and 1, e.g. 0.99.
+     */
+    long getPercentile(double fraction)
+    {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /** Forget all recorded latencies.
+     */
+    void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /** Return "n=.. mean=.. p50=.. p90=.. p99=.. p99.9=.. max=.." in microseconds.
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("n=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                getCount(), getMean() / 1000.0, getPercentile(0.50) / 1000.0, getPercentile(0.90) / 1000.0,
+                getPercentile(0.99) / 1000.0, getPercentile(0.999) / 1000.0, getMax() / 1000.0);
+    }
+
+    private static int indexOf(long value)
+    {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestValueOf(int index)
+    {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,371 @@
+/* Latency histograms and operation counters of an OPC-UA connection manager.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUAManagerStats.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** Collects, for one manager, a latency histogram of the read, write,
+ *  browse and (re)connect requests, and counts failures, timeouts (of
+ *  the connection and of the requests), nodes and bytes. Byte counts are estimated from the request contents
+ *  (tag names plus value, timestamp and status of each node), as the
+ *  framework client does not report the size of its messages.
+ *  <p>
+ *  The statistics are published as a JMX MBean and can be printed by
+ *  the manager at wrapup.
+ */
+public class OPCUAManagerStats implements OPCUAManagerStatsMBean
+{
+    // Value, source timestamp and status code of one node.
+    private static final int VALUE_BYTES = 8 + 8 + 4;
+
+    // Tells apart the MBeans of managers of the same name (e.g. two
+    // copies of a model open in one JVM).
+    private static final AtomicLong nextInstance = new AtomicLong();
+
+    private final OPCUALatencyHistogram readLatency = new OPCUALatencyHistogram();
+    private final OPCUALatencyHistogram writeLatency = new OPCUALatencyHistogram();
+    private final OPCUALatencyHistogram browseLatency = new OPCUALatencyHistogram();
+    private final OPCUALatencyHistogram reconnectLatency = new OPCUALatencyHistogram();
+    private final AtomicLong readFailures = new AtomicLong();
+    private final AtomicLong writeFailures = new AtomicLong();
+    private final AtomicLong browseFailures = new AtomicLong();
+    private final AtomicLong reconnectFailures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong readNodes = new AtomicLong();
+    private final AtomicLong readBytes = new AtomicLong();
+    private final AtomicLong writeNodes = new AtomicLong();
+    private final AtomicLong writeBytes = new AtomicLong();
+
+    private volatile String sEndpoint = "";
+    private final long instance = nextInstance.incrementAndGet();
+    private ObjectName objectName = null;
+
+    void setEndpoint(String sEndpoint)
+    {
+        this.sEndpoint = sEndpoint;
+    }
+
+    void recordRead(long nanos, int nodes, long bytes)
+    {
+        readLatency.record(nanos);
+        readNodes.addAndGet(nodes);
+        readBytes.addAndGet(bytes);
+    }
+
+    /** Record a failed read, and a timeout if it timed out.
+     *  @param cause The exception of the read.
+     */
+    void recordReadFailure(Throwable cause)
+    {
+        readFailures.incrementAndGet();
+        recordIfTimeout(cause);
+    }
+
+    void recordWrite(long nanos, int nodes, long bytes)
+    {
+        writeLatency.record(nanos);
+        writeNodes.addAndGet(nodes);
+        writeBytes.addAndGet(bytes);
+    }
+
+    /** Record a failed write, and a timeout if it timed out.
+     *  @param cause The exception of the write.
+     */
+    void recordWriteFailure(Throwable cause)
+    {
+        writeFailures.incrementAndGet();
+        recordIfTimeout(cause);
+    }
+
+    void recordBrowse(long nanos)
+    {
+        browseLatency.record(nanos);
+    }
+
+    /** Record a failed browse, and a timeout if it timed out.
+     *  @param cause The exception of the browse.
+     */
+    void recordBrowseFailure(Throwable cause)
+    {
+        browseFailures.incrementAndGet();
+        recordIfTimeout(cause);
+    }
+
+    /** Record a connection attempt of the session used by the manager.
+     *  @param nanos The duration of the attempt.
+     *  @param connected True if the attempt succeeded.
+     */
+    void recordReconnect(long nanos, boolean connected)
+    {
+        if (connected) {
+            reconnectLatency.record(nanos);
+        } else {
+            reconnectFailures.incrementAndGet();
+        }
+    }
+
+    void recordTimeout()
+    {
+        timeouts.incrementAndGet();
+    }
+
+    /** Count a timeout if the exception, or one of its causes, is a
+     *  TimeoutException or carries a Bad_Timeout / Bad_RequestTimeout
+     *  status (the framework client only reports the status in the
+     *  message).
+     */
+    private void recordIfTimeout(Throwable cause)
+    {
+        for (Throwable e = cause; e != null; e = e.getCause() == e ? null : e.getCause()) {
+            String sMessage = e.getMessage();
+            if (e instanceof TimeoutException
+                    || (sMessage != null && (sMessage.contains("Bad_Timeout") || sMessage.contains("Bad_RequestTimeout")))) {
+                timeouts.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /** Return the estimated size of the values of some nodes.
+     *  @param tagLength The total length of the tag names.
+     *  @param nodes The number of nodes.
+     */
+    static long estimateBytes(long tagLength, int nodes)
+    {
+        return tagLength + (long) nodes * VALUE_BYTES;
+    }
+
+    /** Publish the statistics in the platform MBean server. The name of
+     *  the MBean holds the full name of the manager and an instance
+     *  number, so that managers of the same name do not replace each
+     *  other.
+     *  @param sName The full name of the manager.
+     */
+    synchronized void register(String sName)
+    {
+        unregister();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("ptolemy.actor.lib:type=OPCUAConnectionManager,name="
+                    + ObjectName.quote(sName) + ",instance=" + instance);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (Exception e) {
+            System.out.println("OPCUAManagerStats::register: Failed registering MBean for " + sName);
+            e.printStackTrace();
+        }
+    }
+
+    /** Remove the statistics from the platform MBean server.
+     */
+    synchronized void unregister()
+    {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                // Already removed.
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String getEndpoint()
+    {
+        return sEndpoint;
+    }
+
+    @Override
+    public long getReadRequests()
+    {
+        return readLatency.getCount();
+    }
+
+    @Override
+    public long getReadFailures()
+    {
+        return readFailures.get();
+    }
+
+    @Override
+    public long getReadNodes()
+    {
+        return readNodes.get();
+    }
+
+    @Override
+    public long getReadBytes()
+    {
+        return readBytes.get();
+    }
+
+    @Override
+    public double getReadLatencyP50Micros()
+    {
+        return readLatency.getPercentile(0.50) / 1000.0;
+    }
+
+    @Override
+    public double getReadLatencyP99Micros()
+    {
+        return readLatency.getPercentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getReadLatencyMaxMicros()
+    {
+        return readLatency.getMax() / 1000.0;
+    }
+
+    @Override
+    public long getWriteRequests()
+    {
+        return writeLatency.getCount();
+    }
+
+    @Override
+    public long getWriteFailures()
+    {
+        return writeFailures.get();
+    }
+
+    @Override
+    public long getWriteNodes()
+    {
+        return writeNodes.get();
+    }
+
+    @Override
+    public long getWriteBytes()
+    {
+        return writeBytes.get();
+    }
+
+    @Override
+    public double getWriteLatencyP50Micros()
+    {
+        return writeLatency.getPercentile(0.50) / 1000.0;
+    }
+
+    @Override
+    public double getWriteLatencyP99Micros()
+    {
+        return writeLatency.getPercentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getWriteLatencyMaxMicros()
+    {
+        return writeLatency.getMax() / 1000.0;
+    }
+
+    @Override
+    public long getBrowseRequests()
+    {
+        return browseLatency.getCount();
+    }
+
+    @Override
+    public long getBrowseFailures()
+    {
+        return browseFailures.get();
+    }
+
+    @Override
+    public double getBrowseLatencyP50Micros()
+    {
+        return browseLatency.getPercentile(0.50) / 1000.0;
+    }
+
+    @Override
+    public double getBrowseLatencyP99Micros()
+    {
+        return browseLatency.getPercentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getBrowseLatencyMaxMicros()
+    {
+        return browseLatency.getMax() / 1000.0;
+    }
+
+    @Override
+    public long getReconnects()
+    {
+        return reconnectLatency.getCount();
+    }
+
+    @Override
+    public long getReconnectFailures()
+    {
+        return reconnectFailures.get();
+    }
+
+    @Override
+    public long getTimeouts()
+    {
+        return timeouts.get();
+    }
+
+    @Override
+    public double getReconnectLatencyP50Micros()
+    {
+        return reconnectLatency.getPercentile(0.50) / 1000.0;
+    }
+
+    @Override
+    public double getReconnectLatencyMaxMicros()
+    {
+        return reconnectLatency.getMax() / 1000.0;
+    }
+
+    @Override
+    public String getSummary()
+    {
+        StringBuilder summary = new StringBuilder();
+        summary.append("endpoint   ").append(sEndpoint).append('\n');
+        summary.append("read       ").append(readLatency).append(" failures=").append(readFailures.get())
+                .append(" nodes=").append(readNodes.get()).append(" bytes=").append(readBytes.get()).append('\n');
+        summary.append("write      ").append(writeLatency).append(" failures=").append(writeFailures.get())
+                .append(" nodes=").append(writeNodes.get()).append(" bytes=").append(writeBytes.get()).append('\n');
+        summary.append("browse     ").append(browseLatency).append(" failures=").append(browseFailures.get()).append('\n');
+        summary.append("reconnect  ").append(reconnectLatency).append(" failures=").append(reconnectFailures.get())
+                .append(" timeouts=").append(timeouts.get());
+        return summary.toString();
+    }
+
+    @Override
+    public void reset()
+    {
+        readLatency.reset();
+        writeLatency.reset();
+        browseLatency.reset();
+        reconnectLatency.reset();
+        readFailures.set(0);
+        writeFailures.set(0);
+        browseFailures.set(0);
+        reconnectFailures.set(0);
+        timeouts.set(0);
+        readNodes.set(0);
+        readBytes.set(0);
+        writeNodes.set(0);
+        writeBytes.set(0);
+    }
+}
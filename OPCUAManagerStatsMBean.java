@@ -0,0 +1,57 @@
+/* JMX view of the statistics of an OPC-UA connection manager.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUAManagerStatsMBean.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper interface of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+/** Attributes published over JMX for each OPCUAConnectionManager, under
+ *  "ptolemy.actor.lib:type=OPCUAConnectionManager,name=&lt;full name&gt;,instance=&lt;n&gt;".
+ *  Latencies are in microseconds and cover the requests sent to the
+ *  server, from the call to the framework client to its return. Timeouts
+ *  count the connections not ready within connectTimeout and the read,
+ *  write and browse requests that timed out.
+ */
+public interface OPCUAManagerStatsMBean
+{
+    String getEndpoint();
+
+    long getReadRequests();
+    long getReadFailures();
+    long getReadNodes();
+    long getReadBytes();
+    double getReadLatencyP50Micros();
+    double getReadLatencyP99Micros();
+    double getReadLatencyMaxMicros();
+
+    long getWriteRequests();
+    long getWriteFailures();
+    long getWriteNodes();
+    long getWriteBytes();
+    double getWriteLatencyP50Micros();
+    double getWriteLatencyP99Micros();
+    double getWriteLatencyMaxMicros();
+
+    long getBrowseRequests();
+    long getBrowseFailures();
+    double getBrowseLatencyP50Micros();
+    double getBrowseLatencyP99Micros();
+    double getBrowseLatencyMaxMicros();
+
+    long getReconnects();
+    long getReconnectFailures();
+    long getTimeouts();
+    double getReconnectLatencyP50Micros();
+    double getReconnectLatencyMaxMicros();
+
+    /** Return all statistics as text, one line per operation. */
+    String getSummary();
+
+    /** Set all counters and histograms to zero. */
+    void reset();
+}
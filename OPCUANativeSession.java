@@ -0,0 +1,204 @@
+/* A direct Eclipse Milo session used for OPC-UA services not wrapped by the GSS framework.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUANativeSession.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.ServerState;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.BrowsePath;
+import org.eclipse.milo.opcua.stack.core.types.structured.BrowsePathResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.Range;
+import org.eclipse.milo.opcua.stack.core.types.structured.RelativePath;
+import org.eclipse.milo.opcua.stack.core.types.structured.RelativePathElement;
+
+/** A Milo client connected to the same endpoint as the GSS framework client
+ *  of a session. The framework client only offers synchronous read, write
+ *  and browse; services such as subscriptions are issued through this session.
+ *  <p>
+ *  Tag names are mapped to node ids with the manager "nodeIdFormat"
+ *  parameter, e.g. "ns=2;s=%s".
+ */
+class OPCUANativeSession
+{
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+
+    private final String sEndpointUrl;
+    private OpcUaClient client = null;
+
+    OPCUANativeSession(String sEndpointUrl)
+    {
+        this.sEndpointUrl = sEndpointUrl;
+    }
+
+    /** Return the Milo client, connecting it on first use.
+     *  @return A connected client.
+     *  @exception Exception If the connection fails.
+     */
+    synchronized OpcUaClient getClient() throws Exception
+    {
+        if (client == null) {
+            System.out.println("OPCUANativeSession::getClient: Connecting to endpoint: " + sEndpointUrl);
+            OpcUaClient newClient = OpcUaClient.create(sEndpointUrl);
+            newClient.connect().get(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            client = newClient;
+        }
+        return client;
+    }
+
+    /** Return true if the specified client is the one of this session and
+     *  the session was not disconnected since. Never connects.
+     */
+    synchronized boolean isConnectedWith(OpcUaClient other)
+    {
+        return client != null && client == other;
+    }
+
+    /** Return the node id of the specified tag.
+     *  @param sNodeIdFormat The format of the node id, e.g. "ns=2;s=%s".
+     *  @param sTagName OPC-UA node name.
+     */
+    static NodeId toNodeId(String sNodeIdFormat, String sTagName)
+    {
+        return NodeId.parse(String.format(sNodeIdFormat, sTagName));
+    }
+
+    /** Read what identifies the address space of the server: its
+     *  namespace array and build info (product, version, build number and
+     *  date). Two equal keys mean the server was not changed in between.
+     *  @exception Exception If the server cannot be read.
+     */
+    String readServerKey() throws Exception
+    {
+        List<DataValue> values = getClient().readValues(0.0, TimestampsToReturn.Neither, Arrays.asList(
+                Identifiers.Server_NamespaceArray,
+                Identifiers.Server_ServerStatus_BuildInfo_ProductUri,
+                Identifiers.Server_ServerStatus_BuildInfo_SoftwareVersion,
+                Identifiers.Server_ServerStatus_BuildInfo_BuildNumber,
+                Identifiers.Server_ServerStatus_BuildInfo_BuildDate)).get(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        StringBuilder key = new StringBuilder();
+        for (DataValue dataValue : values) {
+            if (!dataValue.getStatusCode().isGood()) {
+                throw new Exception("Cannot read the server key: " + dataValue.getStatusCode());
+            }
+            Object value = dataValue.getValue().getValue();
+            key.append(value instanceof Object[] ? Arrays.toString((Object[]) value) : String.valueOf(value)).append('|');
+        }
+        return key.toString();
+    }
+
+    /** Read the span (High - Low) of the EURange property of an analog
+     *  node.
+     *  @param nodeId The node.
+     *  @return The span, positive.
+     *  @exception Exception If the node has no valid EURange, or the
+     *   server cannot be read.
+     */
+    double readEURange(NodeId nodeId) throws Exception
+    {
+        OpcUaClient connected = getClient();
+        RelativePath path = new RelativePath(new RelativePathElement[] {
+                new RelativePathElement(Identifiers.HasProperty, false, false, new QualifiedName(0, "EURange")) });
+        BrowsePathResult result = connected.translateBrowsePaths(Arrays.asList(new BrowsePath(nodeId, path)))
+                .get(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS).getResults()[0];
+        if (!result.getStatusCode().isGood() || result.getTargets() == null || result.getTargets().length == 0) {
+            throw new Exception("Node " + nodeId + " has no EURange: " + result.getStatusCode());
+        }
+        NodeId propertyId = result.getTargets()[0].getTargetId().toNodeId(connected.getNamespaceTable())
+                .orElseThrow(() -> new Exception("EURange of " + nodeId + " is on another server."));
+        DataValue dataValue = connected.readValue(0.0, TimestampsToReturn.Neither, propertyId)
+                .get(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Object value = dataValue.getValue().getValue();
+        if (!(value instanceof ExtensionObject)) {
+            throw new Exception("Cannot read the EURange of " + nodeId + ": " + dataValue.getStatusCode());
+        }
+        Range range = (Range) ((ExtensionObject) value).decode(connected.getStaticSerializationContext());
+        double span = range.getHigh() - range.getLow();
+        if (!(span > 0.0)) {
+            throw new Exception("EURange of " + nodeId + " is empty: " + range.getLow() + " to " + range.getHigh());
+        }
+        return span;
+    }
+
+    /** Check that the server answers: read its state within a timeout.
+     *  @param timeoutMillis The maximum time to wait for the answer.
+     *  @return False if the server did not answer in time, answered with
+     *   a Bad status, or is not in the Running state.
+     *  @exception Exception If the session cannot be connected, in which
+     *   case nothing is known about the server.
+     */
+    boolean isServerRunning(long timeoutMillis) throws Exception
+    {
+        OpcUaClient connected = getClient();
+        DataValue dataValue;
+        try {
+            dataValue = connected.readValue(0.0, TimestampsToReturn.Neither, Identifiers.Server_ServerStatus_State)
+                    .get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return false;
+        }
+        if (dataValue.getStatusCode() != null && !dataValue.getStatusCode().isGood()) {
+            return false;
+        }
+        Object state = dataValue.getValue().getValue();
+        if (state instanceof ServerState) {
+            return state == ServerState.Running;
+        }
+        return state instanceof Number && ((Number) state).intValue() == ServerState.Running.getValue();
+    }
+
+    String getEndpointUrl()
+    {
+        return sEndpointUrl;
+    }
+
+    /** Close the session, if it was ever connected.
+     */
+    synchronized void disconnect()
+    {
+        if (client != null) {
+            try {
+                client.disconnect().get(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                System.out.println("OPCUANativeSession::disconnect: Failed disconnecting from " + sEndpointUrl);
+                e.printStackTrace();
+            } finally {
+                client = null;
+            }
+        }
+    }
+
+    /** Convert an OPC-UA data value to the double representation used by
+     *  the actors (status values are 0/1).
+     */
+    static double toDouble(DataValue dataValue)
+    {
+        Variant variant = dataValue.getValue();
+        Object value = variant == null ? null : variant.getValue();
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value) ? 1.0 : 0.0;
+        }
+        return -Double.MAX_VALUE;
+    }
+}
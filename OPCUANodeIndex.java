@@ -0,0 +1,224 @@
+/* In-memory index of the OPC-UA address space browsed by a manager.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUANodeIndex.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import itaipu.gss.framework.OPCUA.AccessLevel;
+import itaipu.gss.framework.OPCUA.OPCUANode;
+
+/** Keeps, for each access level, the nodes of the whole address space
+ *  sorted by tag name. Filters are answered from the index:
+ *  "PREFIX*" with a binary search, other wildcard expressions ('*' and '?')
+ *  with a scan. The server is browsed again only when the index of a level
+ *  is older than the TTL or refresh() was called.
+ *  <p>
+ *  Each level is an immutable snapshot, so queries from many actors run
+ *  concurrently; only one thread browses the server at a time.
+ */
+class OPCUANodeIndex
+{
+    /** Browses all nodes of an access level from the server.
+     */
+    interface Loader
+    {
+        List<OPCUANode> load(AccessLevel level) throws Exception;
+    }
+
+    private static final class Snapshot
+    {
+        final String[] tags;
+        final OPCUANode[] nodes;
+        final long loadedAt;
+
+        Snapshot(List<OPCUANode> list)
+        {
+            nodes = list.toArray(new OPCUANode[list.size()]);
+            Arrays.sort(nodes, new Comparator<OPCUANode>() {
+                @Override
+                public int compare(OPCUANode a, OPCUANode b) {
+                    return a.getTagName().compareTo(b.getTagName());
+                }
+            });
+            tags = new String[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                tags[i] = nodes[i].getTagName();
+            }
+            loadedAt = System.currentTimeMillis();
+        }
+    }
+
+    private final Loader loader;
+    private final ConcurrentHashMap<AccessLevel, Snapshot> snapshots = new ConcurrentHashMap<AccessLevel, Snapshot>();
+    private final Object loadLock = new Object();
+    private volatile long ttlMillis = 0;
+
+    OPCUANodeIndex(Loader loader)
+    {
+        this.loader = loader;
+    }
+
+    /** Set the time to live of the index, in milliseconds (0 = no expiry).
+     */
+    void setTTL(long ttlMillis)
+    {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /** Replace the index of an access level with the nodes of a complete
+     *  browse done elsewhere, e.g. one streamed to the editor.
+     */
+    void put(AccessLevel level, List<OPCUANode> nodes)
+    {
+        synchronized (loadLock) {
+            snapshots.put(level, new Snapshot(nodes));
+        }
+    }
+
+    /** Discard the index, so that the next query browses the server.
+     */
+    void refresh()
+    {
+        snapshots.clear();
+    }
+
+    /** Return the nodes of an access level matching a filter expression.
+     *  @param level The access level.
+     *  @param filterExpr The filter, e.g. "*", "GEN1*" or "GEN?.MW".
+     *  @return The matching nodes sorted by tag name, or null if the server
+     *   could not be browsed and nothing is cached.
+     */
+    List<OPCUANode> query(AccessLevel level, String filterExpr)
+    {
+        return select(getSnapshot(level), filterExpr);
+    }
+
+    /** Return the nodes of an access level matching a filter expression,
+     *  if the index of the level is loaded and not expired. The server is
+     *  never browsed.
+     *  @return The matching nodes sorted by tag name, or null.
+     */
+    List<OPCUANode> queryCached(AccessLevel level, String filterExpr)
+    {
+        Snapshot snapshot = snapshots.get(level);
+        return snapshot == null || isExpired(snapshot) ? null : select(snapshot, filterExpr);
+    }
+
+    private static List<OPCUANode> select(Snapshot snapshot, String filterExpr)
+    {
+        if (snapshot == null) {
+            return null;
+        }
+
+        if (filterExpr == null || filterExpr.isEmpty() || filterExpr.equals("*")) {
+            return Collections.unmodifiableList(Arrays.asList(snapshot.nodes));
+        }
+
+        int star = filterExpr.indexOf('*');
+        boolean prefixOnly = filterExpr.indexOf('?') < 0
+                && (star < 0 || star == filterExpr.length() - 1);
+        if (prefixOnly) {
+            String prefix = star < 0 ? filterExpr : filterExpr.substring(0, star);
+            int from = lowerBound(snapshot.tags, prefix);
+            int to = from;
+            while (to < snapshot.tags.length && (star < 0
+                    ? snapshot.tags[to].equals(prefix) : snapshot.tags[to].startsWith(prefix))) {
+                to++;
+            }
+            return Collections.unmodifiableList(Arrays.asList(snapshot.nodes).subList(from, to));
+        }
+
+        Pattern pattern = toPattern(filterExpr);
+        List<OPCUANode> result = new ArrayList<OPCUANode>();
+        for (int i = 0; i < snapshot.tags.length; i++) {
+            if (pattern.matcher(snapshot.tags[i]).matches()) {
+                result.add(snapshot.nodes[i]);
+            }
+        }
+        return result;
+    }
+
+    private Snapshot getSnapshot(AccessLevel level)
+    {
+        Snapshot snapshot = snapshots.get(level);
+        if (snapshot != null && !isExpired(snapshot)) {
+            return snapshot;
+        }
+        synchronized (loadLock) {
+            Snapshot current = snapshots.get(level);
+            if (current != null && !isExpired(current)) {
+                return current;
+            }
+            try {
+                List<OPCUANode> nodes = loader.load(level);
+                if (nodes != null) {
+                    current = new Snapshot(nodes);
+                    snapshots.put(level, current);
+                }
+            } catch (Exception e) {
+                System.out.println("OPCUANodeIndex::getSnapshot: Failed browsing server, "
+                        + (current != null ? "using expired index." : "no index available."));
+                e.printStackTrace();
+            }
+            return current;
+        }
+    }
+
+    private boolean isExpired(Snapshot snapshot)
+    {
+        long ttl = ttlMillis;
+        return ttl > 0 && System.currentTimeMillis() - snapshot.loadedAt > ttl;
+    }
+
+    private static int lowerBound(String[] tags, String key)
+    {
+        int lo = 0;
+        int hi = tags.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tags[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Return the regular expression of a filter with '*' and '?' wildcards.
+     */
+    static Pattern toPattern(String filterExpr)
+    {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : filterExpr.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
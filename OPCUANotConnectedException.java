@@ -0,0 +1,32 @@
+/* Thrown when a request is refused because the manager session is not connected.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUANotConnectedException.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.Nameable;
+
+/** The request did not reach the server: the session of the manager had
+ *  no connected client (and no standby to fail over to), or the
+ *  connection was lost while the request was in flight. Any other
+ *  exception of a request means the server answered it with an error.
+ */
+public class OPCUANotConnectedException extends IllegalActionException
+{
+    public OPCUANotConnectedException(Nameable manager)
+    {
+        super(manager, "Client is not connected to a server.");
+    }
+
+    public OPCUANotConnectedException(Nameable manager, Throwable cause)
+    {
+        super(manager, cause, "Connection to the server lost during the request.");
+    }
+}
@@ -0,0 +1,213 @@
+/* The operation limits of an OPC-UA server, and the splitting of requests to fit them.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUAOperationLimits.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+
+import ptolemy.kernel.util.IllegalActionException;
+
+/** The OperationLimits a server publishes under ServerCapabilities
+ *  (MaxNodesPerRead, MaxNodesPerWrite) and the maximum
+ *  size of a message on the session. A request with more nodes than a
+ *  limit is rejected by the server as a whole (BadTooManyOperations), so
+ *  the manager splits its batches in chunks that fit, by number of nodes
+ *  and by estimated size, and sends the chunks concurrently.
+ *  <p>
+ *  A limit of 0 means the server sets none. The message size is the one
+ *  of the Milo client, which the channel negotiates with the server: the
+ *  chunks are kept to 3/4 of it, as node sizes are only estimated.
+ */
+class OPCUAOperationLimits
+{
+    private static final long REQUEST_TIMEOUT_SECONDS = 10;
+    // Node id header, variant, status code and two time stamps.
+    private static final int NODE_BYTES = 8 + 12 + 4 + 16 + 8;
+
+    /** No limit, until the server limits are known. */
+    static final OPCUAOperationLimits NONE = new OPCUAOperationLimits(0, 0, 0);
+
+    final int maxNodesPerRead;
+    final int maxNodesPerWrite;
+    final long maxMessageSize;
+
+    OPCUAOperationLimits(int maxNodesPerRead, int maxNodesPerWrite, long maxMessageSize)
+    {
+        this.maxNodesPerRead = maxNodesPerRead;
+        this.maxNodesPerWrite = maxNodesPerWrite;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /** Read the limits of the server of a session. A limit the server
+     *  does not publish is 0.
+     *  @param session A native session.
+     *  @return The limits.
+     *  @exception Exception If the server cannot be read.
+     */
+    static OPCUAOperationLimits read(OPCUANativeSession session) throws Exception
+    {
+        OpcUaClient client = session.getClient();
+        List<DataValue> values = client.readValues(0.0, TimestampsToReturn.Neither, Arrays.asList(
+                Identifiers.Server_ServerCapabilities_OperationLimits_MaxNodesPerRead,
+                Identifiers.Server_ServerCapabilities_OperationLimits_MaxNodesPerWrite))
+                .get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        return new OPCUAOperationLimits(toLimit(values.get(0)), toLimit(values.get(1)),
+                client.getConfig().getEncodingLimits().getMaxMessageSize());
+    }
+
+    /** Return the number of nodes per read request: the configured
+     *  number, lowered to the server limit.
+     */
+    int limitRead(int configured)
+    {
+        return limit(configured, maxNodesPerRead);
+    }
+
+    /** Return the number of nodes per write request: the configured
+     *  number, lowered to the server limit.
+     */
+    int limitWrite(int configured)
+    {
+        return limit(configured, maxNodesPerWrite);
+    }
+
+    /** Split items in chunks of at most maxNodes items, whose estimated
+     *  size fits in a message.
+     *  @param items The items of a request.
+     *  @param maxNodes The maximum number of items per chunk.
+     *  @param size The estimated size of an item in a message, in bytes.
+     *  @return The chunks, in order; one chunk (the items) if they fit.
+     */
+    <T> List<List<T>> split(List<T> items, int maxNodes, ToIntFunction<T> size)
+    {
+        long maxBytes = maxMessageSize > 0 ? maxMessageSize / 4 * 3 : Long.MAX_VALUE;
+        List<List<T>> chunks = new ArrayList<List<T>>();
+        int from = 0;
+        long bytes = 0;
+        for (int i = 0; i < items.size(); i++) {
+            long itemBytes = size.applyAsInt(items.get(i));
+            if (i > from && (i - from >= maxNodes || bytes + itemBytes > maxBytes)) {
+                chunks.add(items.subList(from, i));
+                from = i;
+                bytes = 0;
+            }
+            bytes += itemBytes;
+        }
+        if (from < items.size()) {
+            chunks.add(items.subList(from, items.size()));
+        }
+        return chunks;
+    }
+
+    /** Send the chunks of a request concurrently and return their results
+     *  in order. The calling thread sends chunks too, and the executor
+     *  threads only take the chunks nobody took yet, so this does not
+     *  deadlock when called from a thread of the executor.
+     *  @param chunks The chunks.
+     *  @param call Sends one chunk.
+     *  @param executor The executor of the other chunks.
+     *  @return The results of the chunks.
+     *  @exception IllegalActionException The exception of the first chunk
+     *   that failed, after all chunks completed.
+     */
+    static <T, R> List<R> sendConcurrently(final List<T> chunks, final ChunkCall<T, R> call, OPCUAAsyncExecutor executor)
+            throws IllegalActionException
+    {
+        final List<CompletableFuture<R>> results = new ArrayList<CompletableFuture<R>>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            results.add(new CompletableFuture<R>());
+        }
+        final AtomicInteger next = new AtomicInteger();
+        Runnable sender = () -> {
+            for (int i = next.getAndIncrement(); i < chunks.size(); i = next.getAndIncrement()) {
+                try {
+                    results.get(i).complete(call.send(chunks.get(i)));
+                } catch (Throwable e) {
+                    results.get(i).completeExceptionally(e);
+                }
+            }
+        };
+        for (int i = 1; i < chunks.size(); i++) {
+            executor.submit(() -> {
+                sender.run();
+                return null;
+            });
+        }
+        sender.run();
+
+        List<R> values = new ArrayList<R>(chunks.size());
+        IllegalActionException failure = null;
+        for (CompletableFuture<R> result : results) {
+            try {
+                values.add(result.join());
+            } catch (CompletionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IllegalActionException ? (IllegalActionException) e.getCause()
+                            : new IllegalActionException(null, e.getCause(), "Failed sending a request chunk.");
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return values;
+    }
+
+    /** Sends one chunk of a request. */
+    interface ChunkCall<T, R>
+    {
+        R send(T chunk) throws IllegalActionException;
+    }
+
+    /** Return the estimated size of a node in a read or write message:
+     *  its node id, and a value with its status and time stamps.
+     */
+    static int estimateBytes(String sTagName)
+    {
+        return sTagName.length() + NODE_BYTES;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MaxNodesPerRead=" + maxNodesPerRead + " MaxNodesPerWrite=" + maxNodesPerWrite
+                + " MaxMessageSize=" + maxMessageSize;
+    }
+
+    private static int limit(int configured, int serverLimit)
+    {
+        return serverLimit > 0 ? Math.min(configured, serverLimit) : configured;
+    }
+
+    private static int toLimit(DataValue dataValue)
+    {
+        if (dataValue.getStatusCode() != null && !dataValue.getStatusCode().isGood()) {
+            return 0;
+        }
+        Object value = dataValue.getValue().getValue();
+        if (!(value instanceof Number)) {
+            return 0;
+        }
+        long limit = ((Number) value).longValue();
+        return limit > Integer.MAX_VALUE ? 0 : (int) limit;
+    }
+}
@@ -23,8 +23,11 @@ import java.util.List;
 import itaipu.gss.framework.OPCUA.DataType;
 import itaipu.gss.framework.OPCUA.OPCUANode;
 import itaipu.gss.framework.log.AppLogger;
+import ptolemy.data.BooleanToken;
 import ptolemy.data.DoubleToken;
 import ptolemy.actor.TypedIOPort;
+import ptolemy.data.expr.Parameter;
+import ptolemy.data.expr.StringParameter;
 import ptolemy.data.expr.OPCUAPointParameter;
 import ptolemy.data.type.BaseType;
 import ptolemy.kernel.CompositeEntity;
@@ -36,6 +39,36 @@ public class OPCUARead extends OPCUAClient{
 
     public TypedIOPort output = null;
 
+    /** How the value is obtained: "Poll" reads the server at every
+     *  iteration (batched with the other readers of the manager),
+     *  "Subscription" takes the latest value notified by the server.
+     */
+    public StringParameter readMode;
+
+    /** In "Poll" mode, start reading the next iteration values at postfire,
+     *  in the background, so that the server round trip overlaps the rest
+     *  of the model computation (one iteration lookahead). The value
+     *  produced is then the one read after the previous firing, unless it
+     *  is older than the manager prefetchMaxAge. Only the readers with
+     *  prefetch set are read ahead, batched together; the others still
+     *  read at every iteration. False by default.
+     */
+    public Parameter prefetch;
+
+    /** In "Poll" mode, the minimum time (seconds, wall clock) between two
+     *  reads of the server. Firings in between produce the value of the
+     *  last read. Readers with the same period are read together by the
+     *  manager. 0 (the default) reads at every iteration.
+     */
+    public Parameter samplePeriod;
+
+    // Handle of this reader in the manager batched read, null if not registered.
+    private OPCUATagHandle readHandle = null;
+    private boolean subscribed = false;
+    private boolean prefetching = false;
+    // Last token produced, sent again while the value does not change.
+    private DoubleToken lastToken = null;
+
     /** Construct an actor with the given container and name.
      *  @param container The container.
      *  @param name The name of this actor.
@@ -48,6 +81,19 @@ public class OPCUARead extends OPCUAClient{
         super(container, name);
         output = new TypedIOPort(this, "output", false, true);
         output.setTypeEquals(BaseType.DOUBLE);
+
+        readMode = new StringParameter(this, "readMode");
+        readMode.setExpression("Poll");
+        readMode.addChoice("Poll");
+        readMode.addChoice("Subscription");
+
+        prefetch = new Parameter(this, "prefetch");
+        prefetch.setTypeEquals(BaseType.BOOLEAN);
+        prefetch.setExpression("false");
+
+        samplePeriod = new Parameter(this, "samplePeriod");
+        samplePeriod.setTypeEquals(BaseType.DOUBLE);
+        samplePeriod.setExpression("0.0");
     }
 
     @Override
@@ -57,6 +103,36 @@ public class OPCUARead extends OPCUAClient{
         return newObject;
     }
 
+    /** Registers the node of this reader in the manager, so that it is read
+     *  together with the nodes of all other readers of the same manager,
+     *  or monitored by the manager subscription in "Subscription" mode.
+     *  @exception IllegalActionException If the superclass throws it.
+     */
+    @Override
+    public void preinitialize() throws IllegalActionException {
+        super.preinitialize();
+
+        readHandle = null;
+        lastToken = null;
+        subscribed = readMode.stringValue().equals("Subscription");
+        double dSamplePeriod = ((DoubleToken) samplePeriod.getToken()).doubleValue();
+        if (dSamplePeriod < 0.0) {
+            throw new IllegalActionException(this, "samplePeriod cannot be negative.");
+        }
+        // Sampled readers are not read at every iteration, so there is nothing to prefetch.
+        prefetching = !subscribed && dSamplePeriod == 0.0 && ((BooleanToken) prefetch.getToken()).booleanValue();
+        OPCUAConnectionManager manager = getMyManager();
+        String tagName = getTagName();
+        if (manager != null && tagName != null && !tagName.isEmpty()) {
+            if (subscribed) {
+                manager.subscribeOpcNode(tagName, getDataType());
+            } else {
+                readHandle = prefetching ? manager.registerPrefetchedReader(tagName, getDataType())
+                        : manager.registerReader(tagName, getDataType(), dSamplePeriod);
+            }
+        }
+    }
+
     /** Reads the corresponding node from OPC-UA server and produce the result
      *  on the output port.
      *  @exception IllegalActionException If the OPC-UA server query fails.
@@ -66,7 +142,19 @@ public class OPCUARead extends OPCUAClient{
         super.fire();
 
         try {
-            output.send(0, new DoubleToken(getMyManager().readOpcValue(getTagName(), getDataType())));
+            OPCUAConnectionManager manager = getMyManager();
+            double value;
+            if (subscribed) {
+                value = manager.readSubscribedOpcValue(getTagName());
+            } else if (readHandle != null) {
+                value = manager.readBatchedOpcValue(readHandle, getDirector().getModelTime());
+            } else {
+                value = manager.readOpcValue(getTagName(), getDataType());
+            }
+            if (lastToken == null || lastToken.doubleValue() != value) {
+                lastToken = new DoubleToken(value);
+            }
+            output.send(0, lastToken);
         } catch (Exception e) {
             System.out.println("OPCUARead::fire() caught exception: " + e + " -- Manager: " + getMyManager());
             e.printStackTrace();
@@ -75,4 +163,29 @@ public class OPCUARead extends OPCUAClient{
         }
     }
 
+    /** Starts reading the values of the next iteration if prefetch is set.
+     *  @return True if execution can continue into the next iteration.
+     *  @exception IllegalActionException If the superclass throws it.
+     */
+    @Override
+    public boolean postfire() throws IllegalActionException {
+        OPCUAConnectionManager manager = getMyManager();
+        if (prefetching && readHandle != null && manager != null) {
+            manager.prefetchBatchedOpcValues();
+        }
+        return super.postfire();
+    }
+
+    /** Releases the handle obtained from the manager at preinitialize.
+     *  @exception IllegalActionException If the superclass throws it.
+     */
+    @Override
+    public void wrapup() throws IllegalActionException {
+        super.wrapup();
+        readHandle = null;
+        lastToken = null;
+        subscribed = false;
+        prefetching = false;
+    }
+
 }
@@ -0,0 +1,224 @@
+/* An actor that implements an OPC-UA client reading many values from a server at once.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUAReadArray.java
+
+ Check JVM version: javap -v OPCUAReadArray.class |findstr major
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+To include actors into the "Itaipu" library (no need of full build):
+1) Edit file "ptolemy/configs/basicActorLibrary.xml" and include the following line (if not already added):
+  <input source="ptolemy/actor/lib/Itaipu.xml"/>
+2) Create the "Itaipu.xml" file in the following location (if not already created):
+  ptolemy/actor/lib/Itaipu.xml
+3) Add the following lines inside the "<group>" tag:
+  <entity name="OPCUAReadArray" class="ptolemy.actor.lib.OPCUAReadArray">
+  </entity>
+
+ */
+package ptolemy.actor.lib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import itaipu.gss.framework.OPCUA.OPCUANode;
+import itaipu.gss.framework.OPCUA.OPCUAValue;
+import ptolemy.actor.TypedIOPort;
+import ptolemy.data.ArrayToken;
+import ptolemy.data.DoubleToken;
+import ptolemy.data.StringToken;
+import ptolemy.data.Token;
+import ptolemy.data.expr.StringParameter;
+import ptolemy.data.type.ArrayType;
+import ptolemy.data.type.BaseType;
+import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.NameDuplicationException;
+import ptolemy.kernel.util.Settable;
+import ptolemy.kernel.util.Workspace;
+
+public class OPCUAReadArray extends OPCUAClient{
+
+    /** The values of all tags, in the order of the tagNames output. */
+    public TypedIOPort output = null;
+
+    /** The names of the tags read, sent at every firing (optional). */
+    public TypedIOPort tagNames = null;
+
+    /** Comma separated list of tags to read. If empty, the tags are the
+     *  nodes matching the filter parameter.
+     */
+    public StringParameter tags;
+
+    /** Browse filter expression (e.g. "GEN*.MW") selecting the tags to read
+     *  when the tags parameter is empty. Matching tags are sorted by name.
+     */
+    public StringParameter filter;
+
+    // Distinct nodes read, and the output positions of each (tag|type).
+    private OPCUANode[] nodes = null;
+    private Map<String, List<Integer>> positions = null;
+    private double[] values = null;
+    private ArrayToken namesToken = null;
+
+    /** Construct an actor with the given container and name.
+     *  @param container The container.
+     *  @param name The name of this actor.
+     *  @exception IllegalActionException If the entity cannot be contained
+     *   by the proposed container.
+     *  @exception NameDuplicationException If the container already has an
+     *   actor with this name.
+     */
+    public OPCUAReadArray(CompositeEntity container, String name) throws NameDuplicationException, IllegalActionException {
+        super(container, name);
+
+        output = new TypedIOPort(this, "output", false, true);
+        output.setTypeEquals(new ArrayType(BaseType.DOUBLE));
+
+        tagNames = new TypedIOPort(this, "tagNames", false, true);
+        tagNames.setTypeEquals(new ArrayType(BaseType.STRING));
+
+        tags = new StringParameter(this, "tags");
+        tags.setExpression("");
+
+        filter = new StringParameter(this, "filter");
+        filter.setExpression("");
+
+        // This actor reads the tags/filter parameters instead of a single Point.
+        getNode().setVisibility(Settable.NONE);
+    }
+
+    @Override
+    public OPCUAReadArray clone(Workspace workspace) throws CloneNotSupportedException {
+        OPCUAReadArray newObject = (OPCUAReadArray) super.clone(workspace);
+        newObject.output.setTypeEquals(new ArrayType(BaseType.DOUBLE));
+        newObject.tagNames.setTypeEquals(new ArrayType(BaseType.STRING));
+        newObject.nodes = null;
+        newObject.positions = null;
+        newObject.values = null;
+        newObject.namesToken = null;
+        return newObject;
+    }
+
+    /** Resolves the list of tags, from the tags parameter or by browsing
+     *  the manager with the filter, and prepares the request. Tags found
+     *  by the filter are read with their own data type, listed tags with
+     *  DataType. A tag listed twice is output at both positions.
+     *  @exception IllegalActionException If no tag is selected.
+     */
+    @Override
+    public void preinitialize() throws IllegalActionException {
+        super.preinitialize();
+
+        OPCUAConnectionManager manager = getMyManager();
+        if (manager == null) {
+            throw new IllegalActionException(this, "No OPC-UA manager found.");
+        }
+
+        List<OPCUANode> selected = new ArrayList<OPCUANode>();
+        String tagList = tags.stringValue().trim();
+        if (!tagList.isEmpty()) {
+            for (String tag : tagList.split(",")) {
+                if (!tag.trim().isEmpty()) {
+                    selected.add(new OPCUANode(tag.trim(), getDataType()));
+                }
+            }
+        } else if (!filter.stringValue().trim().isEmpty()) {
+            List<OPCUANode> found = manager.browseAllOpcNodes(filter.stringValue().trim());
+            if (found != null) {
+                selected.addAll(found);
+            }
+        }
+        if (selected.isEmpty()) {
+            throw new IllegalActionException(this, "No tag selected. Tip: set the tags or filter parameter.");
+        }
+
+        List<OPCUANode> distinct = new ArrayList<OPCUANode>();
+        positions = new HashMap<String, List<Integer>>();
+        Token[] nameTokens = new Token[selected.size()];
+        for (int i = 0; i < selected.size(); i++) {
+            OPCUANode node = selected.get(i);
+            String sKey = key(node);
+            List<Integer> at = positions.get(sKey);
+            if (at == null) {
+                at = new ArrayList<Integer>(1);
+                positions.put(sKey, at);
+                distinct.add(node);
+            }
+            at.add(i);
+            nameTokens[i] = new StringToken(node.getTagName());
+        }
+        nodes = distinct.toArray(new OPCUANode[distinct.size()]);
+        values = new double[selected.size()];
+        namesToken = new ArrayToken(BaseType.STRING, nameTokens);
+    }
+
+    /** Reads all tags from the OPC-UA server, in requests the manager
+     *  splits by readBatchSize, and produces their values as one array.
+     *  @exception IllegalActionException If the OPC-UA server query fails,
+     *   or returns no value for some of the tags.
+     */
+    @Override
+    public void fire() throws IllegalActionException {
+        super.fire();
+
+        Map<OPCUANode, OPCUAValue> result;
+        try {
+            result = getMyManager().readOpcNodes(nodes);
+        } catch (Exception e) {
+            System.out.println("OPCUAReadArray::fire() caught exception: " + e + " -- Manager: " + getMyManager());
+            e.printStackTrace();
+            throw new IllegalActionException(this, e,
+                    "Failed obtaining values from OPC-UA server. Tip: Maybe the Manager is not connected, or parameters tags/filter are not defined.");
+        }
+        Set<String> returned = new HashSet<String>();
+        for (Map.Entry<OPCUANode, OPCUAValue> entry : result.entrySet()) {
+            String sKey = key(entry.getKey());
+            List<Integer> at = positions.get(sKey);
+            if (at != null) {
+                returned.add(sKey);
+                for (int position : at) {
+                    values[position] = entry.getValue().getValue();
+                }
+            }
+        }
+        if (returned.size() < nodes.length) {
+            List<String> missing = new ArrayList<String>();
+            for (OPCUANode node : nodes) {
+                if (!returned.contains(key(node))) {
+                    missing.add(node.getTagName());
+                }
+            }
+            throw new IllegalActionException(this, "No value returned by the server for tags " + missing);
+        }
+
+        Token[] valueTokens = new Token[values.length];
+        for (int i = 0; i < values.length; i++) {
+            valueTokens[i] = new DoubleToken(values[i]);
+        }
+        output.send(0, new ArrayToken(BaseType.DOUBLE, valueTokens));
+        if (tagNames.getWidth() > 0) {
+            tagNames.send(0, namesToken);
+        }
+    }
+
+    /** Releases the requests prepared at preinitialize.
+     *  @exception IllegalActionException If the superclass throws it.
+     */
+    @Override
+    public void wrapup() throws IllegalActionException {
+        super.wrapup();
+        nodes = null;
+        positions = null;
+        values = null;
+    }
+
+    private static String key(OPCUANode node) {
+        return node.getTagName() + "|" + node.getDataType();
+    }
+
+}
@@ -0,0 +1,332 @@
+/* Coalesces the reads of all OPCUARead actors bound to one OPC-UA manager.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUAReadBatcher.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import itaipu.gss.framework.OPCUA.DataType;
+import itaipu.gss.framework.OPCUA.OPCUANode;
+import itaipu.gss.framework.OPCUA.OPCUAValue;
+import ptolemy.actor.util.Time;
+import ptolemy.kernel.util.IllegalActionException;
+
+/** Batches the OPC-UA reads of the readers registered in a manager.
+ *  Each reader registers its tag once (at preinitialize) and receives a
+ *  handle. The first reader firing in an iteration triggers one multi-node
+ *  read of every registered tag; the remaining readers of the same
+ *  iteration get their value from that result. Readers of the same tag
+ *  with different data types are read as different nodes.
+ *  <p>
+ *  An iteration ends when a reader asks again for a value it already
+ *  consumed (SDF: next iteration) or when the model time changes
+ *  (DE: readers firing at different time stamps).
+ *  <p>
+ *  The request is built once, when the registrations change, and the
+ *  values are read into arrays reused from one iteration to the next. A
+ *  batched read still allocates the result map of the client, the chunks
+ *  the manager splits it in to fit the server limits, and a few
+ *  bookkeeping arrays.
+ *  <p>
+ *  Prefetch (one iteration lookahead): prefetch() starts reading all
+ *  nodes in the background, typically at postfire. The read that starts
+ *  the next iteration then takes that result, waiting for it if it is
+ *  still in flight, instead of sending a new request; values are thus as
+ *  old as the time between the postfire and the next fire. A result
+ *  older than the staleness limit is discarded and the nodes are read
+ *  again synchronously. The manager never prefetches in Record or Replay
+ *  mode, whose reads must not depend on the wall clock.
+ *  <p>
+ *  A batcher with a sample period is a poll class: its readers share the
+ *  period, and all their nodes are read again only when the period has
+ *  elapsed since the last read (wall clock time, model time in Record and
+ *  Replay modes); until then every firing gets the values of that read,
+ *  whatever the iteration.
+ */
+class OPCUAReadBatcher
+{
+    /** A read of all nodes started ahead of the next iteration. */
+    private static final class Prefetch
+    {
+        CompletableFuture<Void> done;
+        double[] values;
+        long completedNanos;
+        long maxAgeNanos;
+    }
+
+    private static final ExecutorService prefetcher = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "OPCUAReadBatcher-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final OPCUAConnectionManager manager;
+
+    private final List<OPCUANode> nodes = new ArrayList<OPCUANode>();
+    private final Map<String, Integer> nodeIndex = new HashMap<String, Integer>();
+    private final List<OPCUATagHandle> handles = new ArrayList<OPCUATagHandle>();
+
+    private OPCUANode[] request = new OPCUANode[0];
+    // Copy of nodeIndex made with the request, read by the prefetch threads.
+    private Map<String, Integer> requestIndex = new HashMap<String, Integer>();
+    private double[] values = new double[0];
+    private double[] spare = new double[0];
+    private Time batchTime = null;
+    private boolean stale = true;
+    private Prefetch prefetch = null;
+    private final long periodNanos;
+    private long readNanos = 0;
+
+    OPCUAReadBatcher(OPCUAConnectionManager manager)
+    {
+        this(manager, 0);
+    }
+
+    /** Create a poll class.
+     *  @param manager The manager.
+     *  @param periodNanos The sample period of its readers, 0 to read at
+     *   every iteration.
+     */
+    OPCUAReadBatcher(OPCUAConnectionManager manager, long periodNanos)
+    {
+        this.manager = manager;
+        this.periodNanos = periodNanos;
+    }
+
+    /** Register a reader of the specified node.
+     *  @param sTagName OPC-UA node name.
+     *  @param tType The node data type (analog/accumulator/status).
+     *  @return The reader handle, to be used in {@link #read(OPCUATagHandle, Time)}.
+     */
+    synchronized OPCUATagHandle register(String sTagName, DataType tType)
+    {
+        String sKey = key(sTagName, tType);
+        Integer idx = nodeIndex.get(sKey);
+        if (idx == null) {
+            idx = nodes.size();
+            nodes.add(new OPCUANode(sTagName, tType));
+            nodeIndex.put(sKey, idx);
+            request = null;
+        }
+        OPCUATagHandle handle = new OPCUATagHandle(sTagName, tType, nodes.get(idx), idx);
+        handle.batcher = this;
+        handles.add(handle);
+        stale = true;
+        return handle;
+    }
+
+    /** Return the distinct nodes of all registered readers.
+     */
+    synchronized List<OPCUANode> getNodes()
+    {
+        return new ArrayList<OPCUANode>(nodes);
+    }
+
+    /** Forget all registered readers (called by the manager at wrapup).
+     */
+    synchronized void clear()
+    {
+        awaitPrefetch();
+        nodes.clear();
+        nodeIndex.clear();
+        handles.clear();
+        request = new OPCUANode[0];
+        requestIndex = new HashMap<String, Integer>();
+        values = new double[0];
+        spare = new double[0];
+        batchTime = null;
+        stale = true;
+    }
+
+    /** Start reading all registered nodes in the background, for the next
+     *  iteration. Does nothing if a prefetch is already pending.
+     *  @param maxAgeMillis The age beyond which the result is discarded.
+     */
+    synchronized void prefetch(double maxAgeMillis)
+    {
+        if (prefetch != null || nodes.isEmpty()) {
+            return;
+        }
+        if (request == null) {
+            layout();
+        }
+        final Prefetch next = new Prefetch();
+        final OPCUANode[] requestNodes = request;
+        final Map<String, Integer> requestNodesIndex = requestIndex;
+        final double[] target = spare;
+        next.maxAgeNanos = (long) (maxAgeMillis * 1e6);
+        next.done = CompletableFuture.runAsync(() -> {
+            try {
+                readAll(requestNodes, requestNodesIndex, target);
+            } catch (IllegalActionException e) {
+                throw new RuntimeException(e);
+            }
+            next.values = target;
+            next.completedNanos = System.nanoTime();
+        }, prefetcher);
+        prefetch = next;
+    }
+
+    /** Return the value of the node read by the specified handle, reading
+     *  all registered nodes from the server if a new iteration started.
+     *  @param handle The reader handle returned by register().
+     *  @param modelTime The current model time of the reader.
+     *  @return The node value.
+     *  @exception IllegalActionException If the server read fails.
+     */
+    synchronized double read(OPCUATagHandle handle, Time modelTime) throws IllegalActionException
+    {
+        long now = System.nanoTime();
+        boolean due = periodNanos > 0 ? stale || periodElapsed(now, modelTime)
+                : stale || handle.consumed || !modelTime.equals(batchTime);
+        if (due) {
+            fetch();
+            batchTime = modelTime;
+            readNanos = now;
+        }
+        handle.consumed = true;
+        return values[handle.index];
+    }
+
+    /** Return true if the sample period elapsed since the last read. The
+     *  period is measured in model time when the traffic is recorded or
+     *  replayed, so that a replay reads at the same firings as the record.
+     */
+    private boolean periodElapsed(long now, Time modelTime)
+    {
+        if (manager.isTrafficLogged()) {
+            return batchTime == null || modelTime.subtract(batchTime).getDoubleValue() * 1e9 >= periodNanos;
+        }
+        return now - readNanos >= periodNanos;
+    }
+
+    /** Take the values of the pending prefetch if it is recent enough, or
+     *  read all registered nodes.
+     */
+    private void fetch() throws IllegalActionException
+    {
+        if (request == null) {
+            layout();
+        }
+        for (int i = 0; i < handles.size(); i++) {
+            handles.get(i).consumed = false;
+        }
+
+        if (stale) {
+            // Registrations changed: the prefetch may still be writing into
+            // an array of the old layout, wait for it before dropping it.
+            awaitPrefetch();
+        } else {
+            Prefetch pending = prefetch;
+            prefetch = null;
+            if (pending != null && takePrefetch(pending)) {
+                return;
+            }
+        }
+        readAll(request, requestIndex, values);
+        stale = false;
+    }
+
+    /** Wait for a prefetch and use its values if they are not too old.
+     *  Once it has ended, the spare array it filled can be reused.
+     *  @return False if the prefetch failed or is stale.
+     */
+    private boolean takePrefetch(Prefetch pending)
+    {
+        try {
+            pending.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // The prefetch may still be filling the spare array.
+            spare = new double[values.length];
+            return false;
+        } catch (ExecutionException e) {
+            System.out.println("OPCUAReadBatcher::fetch: Prefetch failed, reading again: " + e.getCause());
+            return false;
+        }
+        if (pending.values.length != values.length
+                || System.nanoTime() - pending.completedNanos > pending.maxAgeNanos) {
+            return false;
+        }
+        spare = values;
+        values = pending.values;
+        return true;
+    }
+
+    /** Wait for the pending prefetch to end and discard it.
+     */
+    private void awaitPrefetch()
+    {
+        Prefetch pending = prefetch;
+        prefetch = null;
+        if (pending != null) {
+            try {
+                pending.done.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // Discarded anyway.
+            }
+        }
+    }
+
+    /** Read all nodes of the request into the target array, indexed as the
+     *  registered nodes. It only uses the arguments, which do not change
+     *  once built, so it runs off the lock in the prefetch threads.
+     *  @exception IllegalActionException If the read fails, or the server
+     *   returned no value for some of the nodes.
+     */
+    private void readAll(OPCUANode[] requestNodes, Map<String, Integer> requestNodesIndex, double[] target)
+            throws IllegalActionException
+    {
+        boolean[] returned = new boolean[target.length];
+        Map<OPCUANode, OPCUAValue> result = manager.readOpcNodes(requestNodes);
+        for (Map.Entry<OPCUANode, OPCUAValue> entry : result.entrySet()) {
+            Integer idx = requestNodesIndex.get(key(entry.getKey().getTagName(), entry.getKey().getDataType()));
+            if (idx != null) {
+                target[idx] = entry.getValue().getValue();
+                returned[idx] = true;
+            }
+        }
+        List<String> missing = null;
+        // The request holds the nodes in the order of their index.
+        for (int i = 0; i < requestNodes.length; i++) {
+            if (!returned[i]) {
+                if (missing == null) {
+                    missing = new ArrayList<String>();
+                }
+                missing.add(requestNodes[i].getTagName());
+            }
+        }
+        if (missing != null) {
+            throw new IllegalActionException(manager, "No value returned by the server for nodes " + missing);
+        }
+    }
+
+    private static String key(String sTagName, DataType tType)
+    {
+        return sTagName + "|" + tType;
+    }
+
+    private void layout()
+    {
+        request = nodes.toArray(new OPCUANode[nodes.size()]);
+        requestIndex = new HashMap<String, Integer>(nodeIndex);
+        values = new double[nodes.size()];
+        spare = new double[nodes.size()];
+    }
+}
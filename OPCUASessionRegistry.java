@@ -0,0 +1,767 @@
+/* Process-wide registry of OPC-UA sessions shared by the managers of the same endpoint.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUASessionRegistry.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import itaipu.gss.framework.OPCUA.OPCUAClient;
+import itaipu.gss.framework.OPCUA.OPCUAConnectOptions;
+
+/** Maps an endpoint and its connect options to one shared, reference
+ *  counted session. Managers acquire the session of their endpoint and
+ *  release it when done; the last release disconnects the session. All
+ *  models and cloned managers of a JVM pointing to the same server thus
+ *  use a single connection.
+ *  <p>
+ *  Sessions connect in the background: acquire() never blocks, and the
+ *  readiness of a session is a future that actors wait on at
+ *  preinitialize. When the connection drops, the session reconnects with
+ *  exponential backoff and jitter.
+ *  <p>
+ *  Requests borrow the client of a session through a reference counted
+ *  ClientHandle, without locking. A reconnection connects a new client
+ *  first, then swaps the handles atomically: requests in flight finish on
+ *  the old client, which is disconnected when the last of them returns
+ *  its handle.
+ *  <p>
+ *  The endpoint may be an ordered, comma separated list of redundant
+ *  servers. The session is then connected to one of them (the active one)
+ *  and keeps a standby client connected to the next one in the list,
+ *  checked as often as the active one. When the active client is found
+ *  disconnected, or the active server stops answering, the standby client
+ *  is swapped in at once, without a new handshake, and a new standby is
+ *  connected in the background.
+ *  <p>
+ *  A server may stop responding while its socket stays open, so the
+ *  client connected flag is not enough: each health check also reads the
+ *  server state (Server_ServerStatus_State) through the Milo session, with
+ *  a short timeout. A timeout, a Bad status or a state other than Running
+ *  counts as a lost connection.
+ *  <p>
+ *  Timing and blocking work are kept apart: the scheduler thread only
+ *  counts delays and runs the health checks, while connects, disconnects
+ *  and listeners run on a pool of their own. An unreachable server thus
+ *  delays its own session only, not the failover of the others.
+ */
+final class OPCUASessionRegistry
+{
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+    private static final double BACKOFF_JITTER = 0.2;
+    private static final long HEALTH_CHECK_MILLIS = 5000;
+    private static final long FAILOVER_CHECK_MILLIS = 500;
+    private static final long STANDBY_RETRY_MILLIS = 5000;
+    private static final long PROBE_TIMEOUT_MILLIS = 1000;
+
+    /** A client borrowed by a request. The session holds one reference
+     *  while the handle is current; each request holds one until it calls
+     *  release(). The client is disconnected when the count drops to zero.
+     */
+    static final class ClientHandle
+    {
+        final OPCUAClient client;
+        private final String sEndpoint;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        private ClientHandle(OPCUAClient client, String sEndpoint)
+        {
+            this.client = client;
+            this.sEndpoint = sEndpoint;
+        }
+
+        /** Add a reference, unless the handle is already retired. */
+        private boolean retain()
+        {
+            for (;;) {
+                int n = refs.get();
+                if (n == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /** Give back the handle; must be called once per acquireClient(),
+         *  in a finally block.
+         */
+        void release()
+        {
+            if (refs.decrementAndGet() == 0) {
+                blocking.execute(() -> disconnect(client, sEndpoint));
+            }
+        }
+    }
+
+    /** A session shared by all managers of an endpoint.
+     */
+    static final class Session
+    {
+        private final String sKey;
+        private final String sEndpoint;
+        private final String[] endpoints;
+        private final AtomicReference<ClientHandle> current;
+        // Index in endpoints of the current client, and of the next connect attempt.
+        private volatile int active = 0;
+        private int nextConnect = 0;
+        // Standby client connected to another endpoint, or null.
+        private OPCUAClient standby = null;
+        private int standbyIndex = -1;
+        private DelayedTask pendingStandby = null;
+        private volatile CompletableFuture<Void> ready = new CompletableFuture<Void>();
+        private OPCUANativeSession nativeSession = null;
+        // Limits of the server, read at each (re)connection.
+        private volatile OPCUAOperationLimits operationLimits = OPCUAOperationLimits.NONE;
+        private final List<OPCUAManagerStats> statsList = new CopyOnWriteArrayList<OPCUAManagerStats>();
+        private final List<Runnable> connectListeners = new CopyOnWriteArrayList<Runnable>();
+        private DelayedTask pendingConnect = null;
+        private ScheduledFuture<?> healthCheck = null;
+        private int attempt = 0;
+        // Whether a server state probe is in progress.
+        private boolean probing = false;
+        private boolean closed = false;
+        private int refCount = 0;
+
+        private Session(String sKey, String sEndpoint)
+        {
+            this.sKey = sKey;
+            this.sEndpoint = sEndpoint;
+            this.endpoints = parseEndpoints(sEndpoint);
+            this.current = new AtomicReference<ClientHandle>(new ClientHandle(new OPCUAClient(), endpoints[0]));
+        }
+
+        /** Return the endpoint text the session was acquired with, which
+         *  may list several servers.
+         */
+        String getEndpoint()
+        {
+            return sEndpoint;
+        }
+
+        /** Return the endpoint of the server currently in use.
+         */
+        String getActiveEndpoint()
+        {
+            return endpoints[active];
+        }
+
+        /** Return the current client, e.g. to check the connection. It may
+         *  not be connected yet, and may be swapped at any time: requests
+         *  must use acquireClient() instead.
+         */
+        OPCUAClient getClient()
+        {
+            return current.get().client;
+        }
+
+        /** Borrow the current client for a request, without locking. The
+         *  client stays connected until the handle is released, even if the
+         *  session reconnects meanwhile.
+         *  @return The handle; release() it when the request is done.
+         */
+        ClientHandle acquireClient()
+        {
+            for (;;) {
+                ClientHandle handle = current.get();
+                if (handle.retain()) {
+                    return handle;
+                }
+                // Retired after being swapped out: the new one is current.
+            }
+        }
+
+        /** Return a future completed when the session is connected.
+         */
+        CompletableFuture<Void> getReadiness()
+        {
+            return ready;
+        }
+
+        /** Wait until the session is connected.
+         *  @param timeoutMillis The maximum time to wait, in milliseconds.
+         *  @exception TimeoutException If the session is not connected in time.
+         *  @exception InterruptedException If the caller is interrupted.
+         */
+        void awaitReady(long timeoutMillis) throws TimeoutException, InterruptedException
+        {
+            try {
+                ready.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                // The readiness future is only ever completed normally.
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /** Report the connection attempts of the session to the statistics
+         *  of a manager using it.
+         */
+        void addStats(OPCUAManagerStats stats)
+        {
+            statsList.add(stats);
+        }
+
+        void removeStats(OPCUAManagerStats stats)
+        {
+            statsList.remove(stats);
+        }
+
+        /** Add a listener run by the registry blocking pool each time the
+         *  session connected a new client or failed over to the standby.
+         */
+        void addConnectListener(Runnable listener)
+        {
+            connectListeners.add(listener);
+        }
+
+        void removeConnectListener(Runnable listener)
+        {
+            connectListeners.remove(listener);
+        }
+
+        /** Return the operation limits of the server, or no limit before
+         *  the first connection. They are read before the session is ready,
+         *  so they are known once awaitReady() returns.
+         */
+        OPCUAOperationLimits getOperationLimits()
+        {
+            return operationLimits;
+        }
+
+        /** Read the operation limits of the current server. Without them
+         *  (old server, no native session) requests are not limited.
+         */
+        private void readOperationLimits()
+        {
+            try {
+                operationLimits = OPCUAOperationLimits.read(getNativeSession());
+                System.out.println("OPCUASessionRegistry::readOperationLimits: " + getActiveEndpoint() + " " + operationLimits);
+            } catch (Exception e) {
+                System.out.println("OPCUASessionRegistry::readOperationLimits: Failed reading the limits of "
+                        + getActiveEndpoint() + ", requests are not limited.");
+                e.printStackTrace();
+                operationLimits = OPCUAOperationLimits.NONE;
+            }
+        }
+
+        private void notifyConnected()
+        {
+            for (Runnable listener : connectListeners) {
+                blocking.execute(listener);
+            }
+        }
+
+        /** Return the Milo session to the same endpoint, created on first use.
+         */
+        synchronized OPCUANativeSession getNativeSession()
+        {
+            if (nativeSession == null) {
+                nativeSession = new OPCUANativeSession(endpoints[active]);
+            }
+            return nativeSession;
+        }
+
+        /** Close the current connections and connect again in the background,
+         *  immediately.
+         */
+        synchronized void reconnect()
+        {
+            attempt = 0;
+            scheduleConnect(0);
+        }
+
+        /** Report that the connection was found broken. The standby client,
+         *  if connected, replaces the current one at once. Otherwise a
+         *  reconnection is scheduled with backoff, unless one is already
+         *  pending. If the client still looks connected, the server is
+         *  probed, in case it stopped responding.
+         *  @return True if the session failed over to the standby client,
+         *   so that the failed request can be retried.
+         */
+        synchronized boolean connectionLost()
+        {
+            if (closed) {
+                return false;
+            }
+            if (getClient().isConnected()) {
+                probe();
+                return false;
+            }
+            return switchOrReconnect();
+        }
+
+        /** Fail over to the standby client, or else schedule a reconnection
+         *  unless one is pending. Called with the lock held.
+         *  @return True if the session failed over.
+         */
+        private boolean switchOrReconnect()
+        {
+            if (failover()) {
+                return true;
+            }
+            if (pendingConnect == null || pendingConnect.isDone()) {
+                System.out.println("OPCUASessionRegistry::connectionLost: Lost connection to " + endpoints[active]);
+                scheduleConnect(nextBackoff());
+            }
+            return false;
+        }
+
+        private synchronized void start()
+        {
+            scheduleConnect(0);
+            long period = endpoints.length > 1 ? FAILOVER_CHECK_MILLIS : HEALTH_CHECK_MILLIS;
+            healthCheck = scheduler.scheduleWithFixedDelay(this::checkHealth, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        /** Check the active and the standby clients, and probe the active
+         *  server.
+         */
+        private synchronized void checkHealth()
+        {
+            connectionLost();
+            if (!closed && endpoints.length > 1 && ready.isDone()
+                    && (standby == null || !standby.isConnected())
+                    && (pendingStandby == null || pendingStandby.isDone())) {
+                if (standby != null) {
+                    System.out.println("OPCUASessionRegistry::checkHealth: Lost standby " + endpoints[standbyIndex]);
+                    final OPCUAClient lost = standby;
+                    final String sLostEndpoint = endpoints[standbyIndex];
+                    blocking.execute(() -> disconnect(lost, sLostEndpoint));
+                    standby = null;
+                }
+                scheduleStandby(0);
+            }
+        }
+
+        /** Read the state of the active server from the blocking pool,
+         *  unless a probe is in progress; if the server does not answer in
+         *  time, or is not running, the connection is considered lost.
+         *  Called with the lock held.
+         */
+        private void probe()
+        {
+            if (closed || probing || !ready.isDone()) {
+                return;
+            }
+            probing = true;
+            final ClientHandle probed = current.get();
+            final OPCUANativeSession session = getNativeSession();
+            blocking.execute(() -> {
+                boolean running;
+                try {
+                    running = session.isServerRunning(PROBE_TIMEOUT_MILLIS);
+                } catch (Exception e) {
+                    // The Milo session cannot be opened: nothing is known
+                    // beyond the connected flag of the client.
+                    running = true;
+                }
+                synchronized (Session.this) {
+                    probing = false;
+                    if (!running && !closed && current.get() == probed) {
+                        System.out.println("OPCUASessionRegistry::probe: " + endpoints[active]
+                                + " did not answer within " + PROBE_TIMEOUT_MILLIS + " ms");
+                        // The Milo session of a hung server is opened again too.
+                        if (nativeSession == session) {
+                            blocking.execute(session::disconnect);
+                            nativeSession = null;
+                        }
+                        switchOrReconnect();
+                    }
+                }
+            });
+        }
+
+        /** Make the standby client the current one. Called with the lock held.
+         *  @return False if there is no connected standby client.
+         */
+        private boolean failover()
+        {
+            if (standby == null || !standby.isConnected()) {
+                return false;
+            }
+            long start = System.nanoTime();
+            int previous = active;
+            active = standbyIndex;
+            nextConnect = standbyIndex;
+            final ClientHandle oldHandle = current.getAndSet(new ClientHandle(standby, endpoints[active]));
+            standby = null;
+            standbyIndex = -1;
+            if (pendingConnect != null) {
+                pendingConnect.cancel();
+                pendingConnect = null;
+            }
+            attempt = 0;
+            ready.complete(null);
+            // Services of the Milo session are opened again on the new server.
+            if (nativeSession != null) {
+                final OPCUANativeSession oldNative = nativeSession;
+                blocking.execute(oldNative::disconnect);
+                nativeSession = null;
+            }
+            oldHandle.release();
+            long elapsed = System.nanoTime() - start;
+            for (OPCUAManagerStats stats : statsList) {
+                stats.recordReconnect(elapsed, true);
+            }
+            System.out.println("OPCUASessionRegistry::failover: Switched from " + endpoints[previous]
+                    + " to " + endpoints[active] + " in " + (elapsed / 1000) + " us");
+            scheduleStandby(0);
+            // The session is ready at once; the limits of the new server follow.
+            blocking.execute(() -> {
+                readOperationLimits();
+                notifyConnected();
+            });
+            return true;
+        }
+
+        private synchronized void scheduleStandby(long delayMillis)
+        {
+            if (closed || endpoints.length < 2) {
+                return;
+            }
+            if (pendingStandby != null) {
+                pendingStandby.cancel();
+            }
+            pendingStandby = new DelayedTask(this::connectStandby, delayMillis);
+        }
+
+        /** Connect a standby client to the endpoint following the active one,
+         *  run by the registry blocking pool.
+         */
+        private void connectStandby()
+        {
+            int index;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                index = (active + 1) % endpoints.length;
+                if (standby != null && standbyIndex == index && standby.isConnected()) {
+                    return;
+                }
+            }
+
+            OPCUAClient newClient = new OPCUAClient();
+            boolean connected = false;
+            try {
+                System.out.println("OPCUASessionRegistry::connectStandby: Connecting standby to " + endpoints[index]);
+                newClient.connect(2, getConnectOptions(endpoints[index]));
+                connected = newClient.isConnected();
+            } catch (Exception e) {
+                System.out.println("OPCUASessionRegistry::connectStandby: Failed connecting to " + endpoints[index]);
+            }
+
+            OPCUAClient oldStandby = null;
+            String sOldEndpoint = null;
+            synchronized (this) {
+                if (closed || !connected || index == active) {
+                    disconnect(newClient, endpoints[index]);
+                    if (!closed && !connected) {
+                        pendingStandby = new DelayedTask(this::connectStandby, STANDBY_RETRY_MILLIS);
+                    }
+                    return;
+                }
+                if (standby != null) {
+                    oldStandby = standby;
+                    sOldEndpoint = endpoints[standbyIndex];
+                }
+                standby = newClient;
+                standbyIndex = index;
+                pendingStandby = null;
+            }
+            disconnect(oldStandby, sOldEndpoint);
+        }
+
+        private synchronized void scheduleConnect(long delayMillis)
+        {
+            if (pendingConnect != null) {
+                pendingConnect.cancel();
+            }
+            if (ready.isDone()) {
+                ready = new CompletableFuture<Void>();
+            }
+            pendingConnect = new DelayedTask(this::connect, delayMillis);
+        }
+
+        /** One connection attempt, run by the registry blocking pool. The new
+         *  client replaces the current one only once connected.
+         */
+        private void connect()
+        {
+            int index;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                index = nextConnect;
+            }
+            String sTarget = endpoints[index];
+
+            OPCUAClient newClient = new OPCUAClient();
+            boolean connected = false;
+            long start = System.nanoTime();
+            try {
+                System.out.println("OPCUASessionRegistry::connect: Trying to connect to endpoint: " + sTarget);
+                newClient.connect(2, getConnectOptions(sTarget));
+                connected = newClient.isConnected();
+            } catch (Exception e) {
+                System.out.println("OPCUASessionRegistry::connect: Failed connecting to " + sTarget);
+                e.printStackTrace();
+            }
+            long elapsed = System.nanoTime() - start;
+            for (OPCUAManagerStats stats : statsList) {
+                stats.recordReconnect(elapsed, connected);
+            }
+
+            ClientHandle oldHandle = null;
+            CompletableFuture<Void> readiness = null;
+            synchronized (this) {
+                if (closed || !connected) {
+                    disconnect(newClient, sTarget);
+                }
+                if (closed) {
+                    return;
+                }
+                // The Milo session keeps its own connection and subscriptions alive.
+                if (connected) {
+                    oldHandle = current.getAndSet(new ClientHandle(newClient, sTarget));
+                    if (nativeSession != null && index != active) {
+                        // Connected to another server of the list: its services are opened again there.
+                        final OPCUANativeSession oldNative = nativeSession;
+                        blocking.execute(oldNative::disconnect);
+                        nativeSession = null;
+                    }
+                    active = index;
+                    attempt = 0;
+                    pendingConnect = null;
+                    readiness = ready;
+                    if (standby != null && standbyIndex == index) {
+                        // The standby server became the active one.
+                        final OPCUAClient duplicate = standby;
+                        blocking.execute(() -> disconnect(duplicate, sTarget));
+                        standby = null;
+                    }
+                    if (standby == null) {
+                        scheduleStandby(0);
+                    }
+                } else {
+                    // Try the next server of the list at the next attempt.
+                    nextConnect = (index + 1) % endpoints.length;
+                    long delay = nextBackoff();
+                    System.out.println("OPCUASessionRegistry::connect: Retrying " + endpoints[nextConnect] + " in " + delay + " ms");
+                    pendingConnect = new DelayedTask(this::connect, delay);
+                }
+            }
+            if (oldHandle != null) {
+                // Disconnected when the requests still using it are done.
+                oldHandle.release();
+            }
+            if (readiness != null) {
+                // Before the session is ready, so that the first requests are sized to fit them.
+                readOperationLimits();
+                readiness.complete(null);
+                notifyConnected();
+            }
+        }
+
+        private long nextBackoff()
+        {
+            long delay = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt, 16));
+            attempt++;
+            double jitter = 1.0 + BACKOFF_JITTER * (2.0 * ThreadLocalRandom.current().nextDouble() - 1.0);
+            return (long) (delay * jitter);
+        }
+
+        /** Stop the reconnections and health checks, at once when the last
+         *  manager releases the session; close() disconnects it later.
+         */
+        private synchronized void stopRetrying()
+        {
+            closed = true;
+            if (pendingConnect != null) {
+                pendingConnect.cancel();
+            }
+            if (pendingStandby != null) {
+                pendingStandby.cancel();
+            }
+            if (healthCheck != null) {
+                healthCheck.cancel(false);
+            }
+        }
+
+        private void close()
+        {
+            ClientHandle oldHandle;
+            synchronized (this) {
+                stopRetrying();
+                if (standby != null) {
+                    disconnect(standby, endpoints[standbyIndex]);
+                    standby = null;
+                }
+                if (nativeSession != null) {
+                    nativeSession.disconnect();
+                    nativeSession = null;
+                }
+                // Late requests get a client that is not connected.
+                oldHandle = current.getAndSet(new ClientHandle(new OPCUAClient(), endpoints[active]));
+            }
+            oldHandle.release();
+        }
+    }
+
+    private static void disconnect(OPCUAClient oldClient, String sEndpoint)
+    {
+        if (oldClient != null && oldClient.isConnected()) {
+            System.out.println("OPCUASessionRegistry::disconnect: Disconnecting client from " + sEndpoint);
+            try {
+                oldClient.disconnect();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static final Map<String, Session> sessions = new HashMap<String, Session>();
+
+    // Delays and health checks only: its tasks never block.
+    private static final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "OPCUASessionRegistry-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Connects, disconnects and listeners, which may block for a connect timeout.
+    private static final ExecutorService blocking = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "OPCUASessionRegistry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** A blocking task run by the blocking pool once the scheduler counted
+     *  its delay. It is done when the task returned or was cancelled.
+     */
+    private static final class DelayedTask
+    {
+        private final FutureTask<Void> task;
+        private final ScheduledFuture<?> tick;
+
+        DelayedTask(Runnable runnable, long delayMillis)
+        {
+            task = new FutureTask<Void>(runnable, null);
+            tick = scheduler.schedule(() -> blocking.execute(task), delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /** Cancel the task if it did not start; a running task completes. */
+        void cancel()
+        {
+            tick.cancel(false);
+            task.cancel(false);
+        }
+
+        boolean isDone()
+        {
+            return task.isDone();
+        }
+    }
+
+    private OPCUASessionRegistry()
+    {
+    }
+
+    /** Return the shared session of an endpoint. If this is the first
+     *  reference, the session starts connecting in the background.
+     *  @param sEndpoint The server endpoint, e.g. "opc.tcp://host:4840".
+     *  @return The session; it must be given back with release().
+     */
+    static Session acquire(String sEndpoint)
+    {
+        synchronized (sessions) {
+            String sKey = getKey(sEndpoint);
+            Session session = sessions.get(sKey);
+            if (session == null) {
+                session = new Session(sKey, sEndpoint);
+                sessions.put(sKey, session);
+                session.start();
+            }
+            session.refCount++;
+            return session;
+        }
+    }
+
+    /** Give back a session obtained with acquire(). When no manager
+     *  references it anymore, the session stops reconnecting at once and is
+     *  closed in the background.
+     */
+    static void release(final Session session)
+    {
+        synchronized (sessions) {
+            if (--session.refCount > 0) {
+                return;
+            }
+            sessions.remove(session.sKey);
+        }
+        session.stopRetrying();
+        blocking.execute(session::close);
+    }
+
+    /** Split an endpoint list "opc.tcp://a:4840, opc.tcp://b:4840" in
+     *  its servers, in order.
+     */
+    static String[] parseEndpoints(String sEndpointList)
+    {
+        List<String> list = new ArrayList<String>();
+        for (String sEndpoint : sEndpointList.split(",")) {
+            if (!sEndpoint.trim().isEmpty()) {
+                list.add(sEndpoint.trim());
+            }
+        }
+        if (list.isEmpty()) {
+            list.add(sEndpointList.trim());
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
+    /** Return the connect options of an endpoint.
+     */
+    static OPCUAConnectOptions getConnectOptions(String sEndpoint)
+    {
+        OPCUAConnectOptions options = new OPCUAConnectOptions();
+        options.setServerEndpoint(sEndpoint);
+        options.setApplicationURI(sEndpoint);
+        return options;
+    }
+
+    /** Return the registry key of an endpoint. The connect options are
+     *  derived from the endpoint alone (getConnectOptions), so the endpoint
+     *  text is the key; an option set otherwise must be added to it.
+     */
+    private static String getKey(String sEndpoint)
+    {
+        return sEndpoint;
+    }
+}
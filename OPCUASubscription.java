@@ -0,0 +1,218 @@
+/* Keeps the latest values of OPC-UA nodes monitored through a subscription.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUASubscription.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscription;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.MonitoringMode;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoredItemCreateRequest;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoringParameters;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+
+import itaipu.gss.framework.OPCUA.DataType;
+
+/** The subscription of a manager. Readers add their tags at preinitialize,
+ *  the manager creates one monitored item per tag at initialize, and the
+ *  server notifications keep a concurrent latest-value table up to date.
+ *  Readers then take their values from the table without contacting the
+ *  server.
+ *  <p>
+ *  The monitored items belong to the session they were created in: when
+ *  the session reconnects, the manager calls restart(), which marks every
+ *  value stale and creates the subscription again in the new session. A
+ *  value stays stale until a notification (or a seed) of the new
+ *  subscription arrives.
+ */
+class OPCUASubscription
+{
+    private static final long REQUEST_TIMEOUT_SECONDS = 10;
+
+    /** The last value notified for a node.
+     */
+    static final class LatestValue
+    {
+        volatile double value = -Double.MAX_VALUE;
+        volatile long timestamp = 0;
+        volatile boolean good = false;
+        // Set when the session reconnected, until a new value arrives.
+        volatile boolean stale = false;
+    }
+
+    private final Map<String, DataType> tags = new LinkedHashMap<String, DataType>();
+    private final ConcurrentHashMap<String, LatestValue> table = new ConcurrentHashMap<String, LatestValue>();
+    private OPCUANativeSession session = null;
+    // Client the subscription was created with.
+    private OpcUaClient client = null;
+    private UaSubscription subscription = null;
+    // Arguments of the last start(), to start again after a reconnection.
+    private String sNodeIdFormat = null;
+    private double dPublishingInterval;
+    private double dSamplingInterval;
+
+    /** Add a node to the subscription. Takes effect at the next start().
+     */
+    synchronized void add(String sTagName, DataType tType)
+    {
+        tags.put(sTagName, tType);
+        table.putIfAbsent(sTagName, new LatestValue());
+    }
+
+    synchronized boolean isEmpty()
+    {
+        return tags.isEmpty();
+    }
+
+    /** Return the subscribed nodes and their data types.
+     */
+    synchronized Map<String, DataType> getTags()
+    {
+        return new LinkedHashMap<String, DataType>(tags);
+    }
+
+    /** Return the latest value entry of a node, or null if not subscribed.
+     */
+    LatestValue get(String sTagName)
+    {
+        return table.get(sTagName);
+    }
+
+    /** Create the subscription and one monitored item per added node.
+     *  @param session The session where the subscription is created.
+     *  @param sNodeIdFormat The format mapping tag names to node ids.
+     *  @param dPublishingInterval The publishing interval, in milliseconds.
+     *  @param dSamplingInterval The sampling interval, in milliseconds.
+     *  @exception Exception If the subscription cannot be created.
+     */
+    synchronized void start(OPCUANativeSession session, String sNodeIdFormat, double dPublishingInterval, double dSamplingInterval) throws Exception
+    {
+        stop();
+        this.sNodeIdFormat = sNodeIdFormat;
+        this.dPublishingInterval = dPublishingInterval;
+        this.dSamplingInterval = dSamplingInterval;
+        client = session.getClient();
+        this.session = session;
+        subscription = client.getSubscriptionManager().createSubscription(dPublishingInterval)
+                .get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        final List<String> names = new ArrayList<String>(tags.keySet());
+        List<MonitoredItemCreateRequest> requests = new ArrayList<MonitoredItemCreateRequest>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            ReadValueId readValueId = new ReadValueId(OPCUANativeSession.toNodeId(sNodeIdFormat, names.get(i)),
+                    AttributeId.Value.uid(), null, QualifiedName.NULL_VALUE);
+            MonitoringParameters parameters = new MonitoringParameters(uint(i), dSamplingInterval, null, uint(1), true);
+            requests.add(new MonitoredItemCreateRequest(readValueId, MonitoringMode.Reporting, parameters));
+        }
+
+        List<UaMonitoredItem> items = subscription.createMonitoredItems(TimestampsToReturn.Source, requests,
+                (item, index) -> {
+                    final LatestValue latest = table.get(names.get(index));
+                    item.setValueConsumer((UaMonitoredItem it, DataValue dataValue) -> update(latest, dataValue));
+                }).get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        for (int i = 0; i < items.size(); i++) {
+            if (!items.get(i).getStatusCode().isGood()) {
+                System.out.println("OPCUASubscription::start: Failed monitoring " + names.get(i)
+                        + ": " + items.get(i).getStatusCode());
+            }
+        }
+    }
+
+    /** Create the subscription again in a new session, if it was started.
+     *  Nothing is done if it still lives in the same, connected session:
+     *  Milo keeps it across reconnections of that session. The latest
+     *  values are marked stale first.
+     *  @return True if the subscription was created again.
+     *  @exception Exception If the subscription cannot be created.
+     */
+    synchronized boolean restart(OPCUANativeSession session) throws Exception
+    {
+        if (sNodeIdFormat == null) {
+            return false;
+        }
+        if (subscription != null && session == this.session && session.isConnectedWith(client)) {
+            return false;
+        }
+        for (LatestValue latest : table.values()) {
+            latest.stale = true;
+        }
+        start(session, sNodeIdFormat, dPublishingInterval, dSamplingInterval);
+        return true;
+    }
+
+    /** Delete the subscription, if any. The latest values are kept.
+     */
+    synchronized void stop()
+    {
+        if (subscription != null) {
+            try {
+                // A replaced session took its subscriptions with it: never
+                // connect again to delete them.
+                if (session.isConnectedWith(client)) {
+                    client.getSubscriptionManager().deleteSubscription(subscription.getSubscriptionId())
+                            .get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+            } catch (Exception e) {
+                System.out.println("OPCUASubscription::stop: Failed deleting subscription.");
+                e.printStackTrace();
+            } finally {
+                subscription = null;
+                client = null;
+            }
+        }
+    }
+
+    /** Stop the subscription and forget all nodes.
+     */
+    synchronized void clear()
+    {
+        stop();
+        sNodeIdFormat = null;
+        tags.clear();
+        table.clear();
+    }
+
+    /** Set a value obtained by other means (initial read) if no notification
+     *  arrived yet, or none since the session reconnected.
+     */
+    void seed(String sTagName, double value)
+    {
+        LatestValue latest = table.get(sTagName);
+        if (latest != null && (latest.timestamp == 0 || latest.stale)) {
+            latest.value = value;
+            latest.good = true;
+            latest.timestamp = System.currentTimeMillis();
+            latest.stale = false;
+        }
+    }
+
+    private static void update(LatestValue latest, DataValue dataValue)
+    {
+        latest.value = OPCUANativeSession.toDouble(dataValue);
+        latest.good = dataValue.getStatusCode() == null || dataValue.getStatusCode().isGood();
+        latest.timestamp = dataValue.getSourceTime() != null
+                ? dataValue.getSourceTime().getJavaTime() : System.currentTimeMillis();
+        latest.stale = false;
+    }
+}
@@ -0,0 +1,61 @@
+/* A tag of an OPC-UA actor, resolved once by the manager and reused at every firing.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUATagHandle.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import itaipu.gss.framework.OPCUA.DataType;
+import itaipu.gss.framework.OPCUA.OPCUANode;
+import itaipu.gss.framework.OPCUA.OPCUAValue;
+
+/** The handle of a tag read or written by an actor. It is obtained from
+ *  the manager at preinitialize, checked against the server at initialize
+ *  and then passed back to the manager at each firing, so that the node
+ *  is resolved only once per run. Each firing still allocates the value
+ *  sent or the result returned by the client.
+ */
+public final class OPCUATagHandle
+{
+    final String sTagName;
+    final DataType tType;
+    final OPCUANode node;
+
+    // Position of the node in the manager batched read, -1 for writers.
+    final int index;
+    // Whether the reader already took its value from the current batch.
+    boolean consumed = false;
+    // The batcher (poll class) of a reader, null for writers.
+    OPCUAReadBatcher batcher = null;
+    // Set when the write queue dropped the last value queued by the writer.
+    volatile boolean writeDropped = false;
+
+    // Reused by synchronous writes.
+    final Map<OPCUANode, OPCUAValue> writeMap = new HashMap<OPCUANode, OPCUAValue>(2);
+
+    OPCUATagHandle(String sTagName, DataType tType, OPCUANode node, int index)
+    {
+        this.sTagName = sTagName;
+        this.tType = tType;
+        this.node = node;
+        this.index = index;
+    }
+
+    public String getTagName()
+    {
+        return sTagName;
+    }
+
+    public DataType getDataType()
+    {
+        return tType;
+    }
+}
@@ -0,0 +1,709 @@
+/* An in-process Eclipse Milo OPC-UA server exposing generated tags, for benchmarks and load tests.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUATestServer.java
+
+ run with: java -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" ptolemy.actor.lib.OPCUATestServer
+      [-port 12686] [-analog 1000] [-status 0] [-accumulator 0] [-updateRate 0] [-latency 0] [-jitter 0]
+      [-errorRate 0] [-script file]
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUABenchmark and of load tests, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.milo.opcua.sdk.core.AccessLevel;
+import org.eclipse.milo.opcua.sdk.core.Reference;
+import org.eclipse.milo.opcua.sdk.server.OpcUaServer;
+import org.eclipse.milo.opcua.sdk.server.api.DataItem;
+import org.eclipse.milo.opcua.sdk.server.api.ManagedNamespaceWithLifecycle;
+import org.eclipse.milo.opcua.sdk.server.api.MonitoredItem;
+import org.eclipse.milo.opcua.sdk.server.api.config.OpcUaServerConfig;
+import org.eclipse.milo.opcua.sdk.server.identity.AnonymousIdentityValidator;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaFolderNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode;
+import org.eclipse.milo.opcua.sdk.server.util.SubscriptionModel;
+import org.eclipse.milo.opcua.sdk.server.api.services.AttributeServices.ReadContext;
+import org.eclipse.milo.opcua.sdk.server.api.services.AttributeServices.WriteContext;
+import org.eclipse.milo.opcua.sdk.server.api.services.AttributeHistoryServices.HistoryReadContext;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.security.DefaultCertificateManager;
+import org.eclipse.milo.opcua.stack.core.security.DefaultServerCertificateValidator;
+import org.eclipse.milo.opcua.stack.core.security.DefaultTrustListManager;
+import org.eclipse.milo.opcua.stack.core.security.SecurityPolicy;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ByteString;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.MessageSecurityMode;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryData;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadDetails;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadRawModifiedDetails;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.WriteValue;
+import org.eclipse.milo.opcua.stack.server.EndpointConfiguration;
+
+import itaipu.gss.framework.OPCUA.DataType;
+
+/** A local OPC-UA server with a flat folder of tags named TAG00000,
+ *  TAG00001, ... in namespace 2, readable and writable, so that the
+ *  default manager nodeIdFormat "ns=2;s=%s" maps a tag name to its node.
+ *  Security is disabled and sessions are anonymous: this server is meant
+ *  for benchmarks and load tests on the local machine only.
+ *  <p>
+ *  The tags follow the DataType conventions of the actors: the first ones
+ *  are Analog (Double), then come the Status (Boolean) and the
+ *  Accumulator (UInt32 counter) tags, see dataType().
+ *  <p>
+ *  The load can be set while the server runs, from code or from a script:
+ *  <ul>
+ *  <li>updateRate: times per second every tag gets a new value (analogs
+ *      follow a sine wave, statuses toggle now and then, accumulators
+ *      count); 0 leaves the values as written by the clients;</li>
+ *  <li>latency and jitter: delay, in milliseconds, added to each read and
+ *      write request (latency plus a uniform random part up to jitter);</li>
+ *  <li>errorRate: probability that a read or write request fails with
+ *      Bad_ResourceUnavailable for all its nodes;</li>
+ *  <li>outage (script only): the server stops for some seconds and
+ *      starts again on the same port, so clients have to reconnect.</li>
+ *  </ul>
+ *  Every tag also has a history, for HistoryRead (raw, forward in time):
+ *  one value every HISTORY_PERIOD_MILLIS, at the multiples of the period,
+ *  computed from the time (see historyValue), so any window can be read
+ *  without storing anything. Windows larger than the number of values
+ *  requested per node are returned page by page with continuation points.
+ *  A point is forgotten once presented back, to read the next page or to
+ *  release it (a release asks for an empty window, see OPCUAHistoryPager,
+ *  so nothing new is handed out); getOpenContinuationPoints() tells how
+ *  many are left.
+ *  <p>
+ *  A script is a text file of lines "&lt;seconds&gt; &lt;setting&gt;
+ *  &lt;value&gt;", e.g. "30 latency 200", run in order, each at its time
+ *  from the start of the script; '#' starts a comment.
+ */
+class OPCUATestServer
+{
+    static final String NAMESPACE_URI = "urn:itaipu:gss:opcua:test";
+    /** Time between two values of the history of a tag. */
+    static final long HISTORY_PERIOD_MILLIS = 1000;
+    private static final String PATH = "/test";
+    // Values returned by one HistoryRead when the client sets no limit.
+    private static final int MAX_HISTORY_VALUES = 10000;
+
+    private final int port;
+    private final int analogCount;
+    private final int statusCount;
+    private final int accumulatorCount;
+    private OpcUaServer server = null;
+    private TagNamespace namespace = null;
+    private File pkiDir = null;
+
+    private final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(2, r -> {
+        Thread thread = new Thread(r, "OPCUATestServer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledFuture<?> updates = null;
+    private volatile double updateRate = 0.0;
+    private volatile long latencyMillis = 0;
+    private volatile long jitterMillis = 0;
+    private volatile double errorRate = 0.0;
+    // Continuation points handed out and not used or released yet: the time of the next value.
+    private final ConcurrentHashMap<ByteString, Long> continuations = new ConcurrentHashMap<ByteString, Long>();
+    private final AtomicLong continuationCount = new AtomicLong();
+
+    /** Create a server of Analog tags; nothing is opened before start().
+     *  @param port The TCP port to listen on.
+     *  @param tagCount The number of tags exposed.
+     */
+    OPCUATestServer(int port, int tagCount)
+    {
+        this(port, tagCount, 0, 0);
+    }
+
+    /** Create a server; nothing is opened before start().
+     *  @param port The TCP port to listen on.
+     *  @param analogCount The number of Analog tags.
+     *  @param statusCount The number of Status tags, following the analogs.
+     *  @param accumulatorCount The number of Accumulator tags, last.
+     */
+    OPCUATestServer(int port, int analogCount, int statusCount, int accumulatorCount)
+    {
+        this.port = port;
+        this.analogCount = analogCount;
+        this.statusCount = statusCount;
+        this.accumulatorCount = accumulatorCount;
+    }
+
+    /** Return the name of the tag with the specified index.
+     */
+    static String tagName(int index)
+    {
+        return String.format("TAG%05d", index);
+    }
+
+    /** Return the endpoint URL clients connect to.
+     */
+    String getEndpointUrl()
+    {
+        return "opc.tcp://localhost:" + port + PATH;
+    }
+
+    int getTagCount()
+    {
+        return analogCount + statusCount + accumulatorCount;
+    }
+
+    /** Return the data type of the tag with the specified index.
+     */
+    DataType dataType(int index)
+    {
+        if (index < analogCount) {
+            return DataType.Analog;
+        }
+        return index < analogCount + statusCount ? DataType.Status : DataType.Accumulator;
+    }
+
+    /** Return the value of the history of a tag at a multiple of
+     *  HISTORY_PERIOD_MILLIS, as a double (Status: 0 or 1).
+     *  @param tType The data type of the tag.
+     *  @param index The index of the tag.
+     *  @param time The time of the value, in milliseconds since the epoch.
+     */
+    static double historyValue(DataType tType, int index, long time)
+    {
+        long sample = time / HISTORY_PERIOD_MILLIS;
+        switch (tType) {
+          case Status:
+            return (sample + index) % 7 < 3 ? 1.0 : 0.0;
+          case Accumulator:
+            return sample & 0xFFFFFFFFL;
+          default:
+            return 100.0 * Math.sin(2.0 * Math.PI * time / 60000.0 + index);
+        }
+    }
+
+    /** Return the number of continuation points of history reads that were
+     *  neither used to read the next page nor released.
+     */
+    int getOpenContinuationPoints()
+    {
+        return continuations.size();
+    }
+
+    /** Set the number of value updates of every tag per second, 0 for none.
+     */
+    synchronized void setUpdateRate(double updateRate)
+    {
+        this.updateRate = updateRate;
+        if (updates != null) {
+            updates.cancel(false);
+            updates = null;
+        }
+        if (updateRate > 0.0 && namespace != null) {
+            final TagNamespace tags = namespace;
+            long period = Math.max(1, (long) (1e6 / updateRate));
+            updates = scheduler.scheduleAtFixedRate(tags::update, period, period, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /** Set the delay added to each read and write request.
+     *  @param latencyMillis The fixed part, in milliseconds.
+     *  @param jitterMillis The maximum random part, in milliseconds.
+     */
+    void setLatency(long latencyMillis, long jitterMillis)
+    {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /** Set the probability that a read or write request fails.
+     */
+    void setErrorRate(double errorRate)
+    {
+        this.errorRate = errorRate;
+    }
+
+    /** Run a request after the configured latency and jitter.
+     */
+    private void delay(Runnable request)
+    {
+        long delay = latencyMillis;
+        long jitter = jitterMillis;
+        if (jitter > 0) {
+            delay += ThreadLocalRandom.current().nextLong(jitter + 1);
+        }
+        if (delay > 0) {
+            scheduler.schedule(request, delay, TimeUnit.MILLISECONDS);
+        } else {
+            request.run();
+        }
+    }
+
+    private boolean injectError()
+    {
+        double rate = errorRate;
+        return rate > 0.0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    /** Start the server and create its tags.
+     *  @exception Exception If the server cannot be started.
+     */
+    void start() throws Exception
+    {
+        pkiDir = Files.createTempDirectory("opcua-test-pki").toFile();
+        DefaultTrustListManager trustListManager = new DefaultTrustListManager(pkiDir);
+
+        EndpointConfiguration endpoint = EndpointConfiguration.newBuilder()
+                .setBindAddress("localhost")
+                .setHostname("localhost")
+                .setBindPort(port)
+                .setPath(PATH)
+                .setSecurityPolicy(SecurityPolicy.None)
+                .setSecurityMode(MessageSecurityMode.None)
+                .addTokenPolicies(OpcUaServerConfig.USER_TOKEN_POLICY_ANONYMOUS)
+                .build();
+
+        OpcUaServerConfig config = OpcUaServerConfig.builder()
+                .setApplicationUri("urn:itaipu:gss:opcua:test-server")
+                .setApplicationName(LocalizedText.english("Itaipu OPC-UA Test Server"))
+                .setProductUri("urn:itaipu:gss:opcua:test-server")
+                .setEndpoints(Collections.singleton(endpoint))
+                .setCertificateManager(new DefaultCertificateManager())
+                .setTrustListManager(trustListManager)
+                .setCertificateValidator(new DefaultServerCertificateValidator(trustListManager))
+                .setIdentityValidator(AnonymousIdentityValidator.INSTANCE)
+                .build();
+
+        server = new OpcUaServer(config);
+        namespace = new TagNamespace(server);
+        namespace.startup();
+        server.startup().get(30, TimeUnit.SECONDS);
+        setUpdateRate(updateRate);
+        System.out.println("OPCUATestServer::start: " + analogCount + " Analog, " + statusCount + " Status and "
+                + accumulatorCount + " Accumulator tags at " + getEndpointUrl());
+    }
+
+    /** Stop the server.
+     */
+    synchronized void stop()
+    {
+        if (updates != null) {
+            updates.cancel(false);
+            updates = null;
+        }
+        namespace = null;
+        if (server != null) {
+            try {
+                server.shutdown().get(30, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                System.out.println("OPCUATestServer::stop: Failed stopping server.");
+                e.printStackTrace();
+            }
+            server = null;
+        }
+        if (pkiDir != null) {
+            deleteTree(pkiDir);
+            pkiDir = null;
+        }
+    }
+
+    private static void deleteTree(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    /** Stop the server, wait and start it again on the same port.
+     *  @param seconds The duration of the outage.
+     *  @exception Exception If the server cannot be started again.
+     */
+    void outage(double seconds) throws Exception
+    {
+        System.out.println("OPCUATestServer::outage: Stopping for " + seconds + " s.");
+        stop();
+        Thread.sleep((long) (seconds * 1000.0));
+        start();
+    }
+
+    /** Run a script of settings, each at its time from now. Returns when
+     *  the last line was run.
+     *  @param script The script, see the class comment.
+     *  @exception Exception If a line is invalid or an outage fails.
+     */
+    void runScript(Reader script) throws Exception
+    {
+        long start = System.currentTimeMillis();
+        BufferedReader reader = new BufferedReader(script);
+        String sLine;
+        int lineNumber = 0;
+        while ((sLine = reader.readLine()) != null) {
+            lineNumber++;
+            int comment = sLine.indexOf('#');
+            String[] fields = (comment < 0 ? sLine : sLine.substring(0, comment)).trim().split("\\s+");
+            if (fields.length == 1 && fields[0].isEmpty()) {
+                continue;
+            }
+            if (fields.length != 3) {
+                throw new IOException("Script line " + lineNumber + ": expected <seconds> <setting> <value>.");
+            }
+            long wait = start + (long) (Double.parseDouble(fields[0]) * 1000.0) - System.currentTimeMillis();
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+            System.out.println("OPCUATestServer::runScript: " + fields[1] + " " + fields[2]);
+            apply(fields[1], fields[2]);
+        }
+    }
+
+    /** Change one setting by name, as given in a script or on the command line.
+     */
+    private void apply(String sSetting, String sValue) throws Exception
+    {
+        switch (sSetting) {
+          case "updateRate":
+            setUpdateRate(Double.parseDouble(sValue));
+            break;
+          case "latency":
+            setLatency(Long.parseLong(sValue), jitterMillis);
+            break;
+          case "jitter":
+            setLatency(latencyMillis, Long.parseLong(sValue));
+            break;
+          case "errorRate":
+            setErrorRate(Double.parseDouble(sValue));
+            break;
+          case "outage":
+            outage(Double.parseDouble(sValue));
+            break;
+          default:
+            throw new IOException("Unknown setting " + sSetting);
+        }
+    }
+
+    private static final Set<AccessLevel> HISTORY_READ_WRITE = EnumSet.of(
+            AccessLevel.CurrentRead, AccessLevel.CurrentWrite, AccessLevel.HistoryRead);
+
+    /** The namespace holding the "Tags" folder and its variables.
+     */
+    private final class TagNamespace extends ManagedNamespaceWithLifecycle
+    {
+        private final SubscriptionModel subscriptionModel;
+        private final UaVariableNode[] nodes = new UaVariableNode[getTagCount()];
+        private long updateCount = 0;
+
+        TagNamespace(OpcUaServer server)
+        {
+            super(server, NAMESPACE_URI);
+            subscriptionModel = new SubscriptionModel(server, this);
+            getLifecycleManager().addLifecycle(subscriptionModel);
+            getLifecycleManager().addStartupTask(this::createNodes);
+        }
+
+        private void createNodes()
+        {
+            UaFolderNode folder = new UaFolderNode(getNodeContext(), newNodeId("Tags"),
+                    newQualifiedName("Tags"), LocalizedText.english("Tags"));
+            getNodeManager().addNode(folder);
+            folder.addReference(new Reference(folder.getNodeId(), Identifiers.Organizes,
+                    Identifiers.ObjectsFolder.expanded(), false));
+
+            for (int i = 0; i < nodes.length; i++) {
+                String sTagName = tagName(i);
+                NodeId type;
+                switch (dataType(i)) {
+                  case Status:
+                    type = Identifiers.Boolean;
+                    break;
+                  case Accumulator:
+                    type = Identifiers.UInt32;
+                    break;
+                  default:
+                    type = Identifiers.Double;
+                }
+                UaVariableNode node = new UaVariableNode.UaVariableNodeBuilder(getNodeContext())
+                        .setNodeId(newNodeId(sTagName))
+                        .setAccessLevel(AccessLevel.toValue(HISTORY_READ_WRITE))
+                        .setUserAccessLevel(AccessLevel.toValue(HISTORY_READ_WRITE))
+                        .setHistorizing(true)
+                        .setBrowseName(newQualifiedName(sTagName))
+                        .setDisplayName(LocalizedText.english(sTagName))
+                        .setDataType(type)
+                        .setTypeDefinition(Identifiers.BaseDataVariableType)
+                        .build();
+                node.setValue(new DataValue(initialValue(i)));
+                getNodeManager().addNode(node);
+                folder.addOrganizes(node);
+                nodes[i] = node;
+            }
+        }
+
+        private Variant initialValue(int index)
+        {
+            switch (dataType(index)) {
+              case Status:
+                return new Variant(index % 2 == 1);
+              case Accumulator:
+                return new Variant(Unsigned.uint(0));
+              default:
+                return new Variant((double) index);
+            }
+        }
+
+        /** Give every tag a new value, run updateRate times per second.
+         */
+        private void update()
+        {
+            long count = ++updateCount;
+            double seconds = count / Math.max(updateRate, 1e-9);
+            DateTime now = DateTime.now();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < nodes.length; i++) {
+                Variant value;
+                switch (dataType(i)) {
+                  case Status:
+                    // About one change per tag every 100 updates.
+                    if (random.nextInt(100) != 0) {
+                        continue;
+                    }
+                    Object current = nodes[i].getValue().getValue().getValue();
+                    value = new Variant(!Boolean.TRUE.equals(current));
+                    break;
+                  case Accumulator:
+                    value = new Variant(Unsigned.uint(count));
+                    break;
+                  default:
+                    value = new Variant(100.0 * Math.sin(2.0 * Math.PI * seconds / 60.0 + i));
+                }
+                nodes[i].setValue(new DataValue(value, StatusCode.GOOD, now));
+            }
+        }
+
+        @Override
+        public void read(ReadContext context, Double maxAge, TimestampsToReturn timestamps, List<ReadValueId> readValueIds)
+        {
+            delay(() -> {
+                if (injectError()) {
+                    context.success(Collections.nCopies(readValueIds.size(),
+                            new DataValue(new StatusCode(StatusCodes.Bad_ResourceUnavailable))));
+                } else {
+                    super.read(context, maxAge, timestamps, readValueIds);
+                }
+            });
+        }
+
+        @Override
+        public void write(WriteContext context, List<WriteValue> writeValues)
+        {
+            delay(() -> {
+                if (injectError()) {
+                    context.success(Collections.nCopies(writeValues.size(),
+                            new StatusCode(StatusCodes.Bad_ResourceUnavailable)));
+                } else {
+                    super.write(context, writeValues);
+                }
+            });
+        }
+
+        /** Read the raw history of tags, see the class comment. A request
+         *  with a continuation point continues where the previous page
+         *  ended, up to the end of the window of the request, and the point
+         *  is forgotten.
+         */
+        @Override
+        public void historyRead(HistoryReadContext context, HistoryReadDetails readDetails,
+                TimestampsToReturn timestamps, List<HistoryReadValueId> readValueIds)
+        {
+            delay(() -> {
+                List<HistoryReadResult> results = new ArrayList<HistoryReadResult>(readValueIds.size());
+                for (HistoryReadValueId readValueId : readValueIds) {
+                    results.add(injectError() ? new HistoryReadResult(new StatusCode(StatusCodes.Bad_ResourceUnavailable), null, null)
+                            : readHistory(readDetails, readValueId));
+                }
+                context.success(results);
+            });
+        }
+
+        private HistoryReadResult readHistory(HistoryReadDetails readDetails, HistoryReadValueId readValueId)
+        {
+            ByteString point = readValueId.getContinuationPoint();
+            Long next = null;
+            if (point != null && point.isNotNull()) {
+                next = continuations.remove(point);
+                if (next == null) {
+                    return new HistoryReadResult(new StatusCode(StatusCodes.Bad_ContinuationPointInvalid), null, null);
+                }
+            }
+            if (!(readDetails instanceof ReadRawModifiedDetails)
+                    || Boolean.TRUE.equals(((ReadRawModifiedDetails) readDetails).getIsReadModified())) {
+                return new HistoryReadResult(new StatusCode(StatusCodes.Bad_HistoryOperationUnsupported), null, null);
+            }
+            int index = indexOf(readValueId.getNodeId());
+            if (index < 0) {
+                return new HistoryReadResult(new StatusCode(StatusCodes.Bad_NodeIdUnknown), null, null);
+            }
+            ReadRawModifiedDetails details = (ReadRawModifiedDetails) readDetails;
+            long start = details.getStartTime().getJavaTime();
+            long end = details.getEndTime().getJavaTime();
+            long first = next != null ? next : (start + HISTORY_PERIOD_MILLIS - 1) / HISTORY_PERIOD_MILLIS * HISTORY_PERIOD_MILLIS;
+            int limit = details.getNumValuesPerNode() == null || details.getNumValuesPerNode().intValue() == 0
+                    ? MAX_HISTORY_VALUES : Math.min(details.getNumValuesPerNode().intValue(), MAX_HISTORY_VALUES);
+
+            List<DataValue> values = new ArrayList<DataValue>();
+            long time = first;
+            DataType tType = dataType(index);
+            for (; time < end && values.size() < limit; time += HISTORY_PERIOD_MILLIS) {
+                double value = historyValue(tType, index, time);
+                Variant variant = tType == DataType.Status ? new Variant(value != 0.0)
+                        : tType == DataType.Accumulator ? new Variant(Unsigned.uint((long) value)) : new Variant(value);
+                DateTime dateTime = new DateTime(new Date(time));
+                values.add(new DataValue(variant, StatusCode.GOOD, dateTime, dateTime));
+            }
+            ByteString nextPoint = null;
+            if (time < end) {
+                nextPoint = ByteString.of(ByteBuffer.allocate(8).putLong(continuationCount.incrementAndGet()).array());
+                continuations.put(nextPoint, time);
+            }
+            HistoryData data = new HistoryData(values.toArray(new DataValue[values.size()]));
+            return new HistoryReadResult(StatusCode.GOOD, nextPoint,
+                    ExtensionObject.encode(getServer().getSerializationContext(), data));
+        }
+
+        /** Return the index of the tag of a node id, or -1 if it is not a tag.
+         */
+        private int indexOf(NodeId nodeId)
+        {
+            if (nodeId == null || nodeId.getNamespaceIndex().intValue() != getNamespaceIndex().intValue()
+                    || !(nodeId.getIdentifier() instanceof String)) {
+                return -1;
+            }
+            String sName = (String) nodeId.getIdentifier();
+            if (!sName.startsWith("TAG")) {
+                return -1;
+            }
+            try {
+                int index = Integer.parseInt(sName.substring(3));
+                return index < nodes.length && sName.equals(tagName(index)) ? index : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public void onDataItemsCreated(List<DataItem> dataItems)
+        {
+            subscriptionModel.onDataItemsCreated(dataItems);
+        }
+
+        @Override
+        public void onDataItemsModified(List<DataItem> dataItems)
+        {
+            subscriptionModel.onDataItemsModified(dataItems);
+        }
+
+        @Override
+        public void onDataItemsDeleted(List<DataItem> dataItems)
+        {
+            subscriptionModel.onDataItemsDeleted(dataItems);
+        }
+
+        @Override
+        public void onMonitoringModeChanged(List<MonitoredItem> monitoredItems)
+        {
+            subscriptionModel.onMonitoringModeChanged(monitoredItems);
+        }
+    }
+
+    /** Run the server until the process is killed. With -script, the
+     *  script is run once the server started.
+     *  @param args The options, see the header of this file.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int port = 12686;
+        int analog = 1000;
+        int status = 0;
+        int accumulator = 0;
+        String sScript = null;
+        String[][] settings = new String[args.length / 2][];
+        int settingCount = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+              case "-port":
+                port = Integer.parseInt(args[i + 1]);
+                break;
+              case "-analog":
+              case "-tags":
+                analog = Integer.parseInt(args[i + 1]);
+                break;
+              case "-status":
+                status = Integer.parseInt(args[i + 1]);
+                break;
+              case "-accumulator":
+                accumulator = Integer.parseInt(args[i + 1]);
+                break;
+              case "-script":
+                sScript = args[i + 1];
+                break;
+              case "-updateRate":
+              case "-latency":
+              case "-jitter":
+              case "-errorRate":
+                settings[settingCount++] = new String[] {args[i].substring(1), args[i + 1]};
+                break;
+              default:
+                System.out.println("OPCUATestServer: Unknown option " + args[i]);
+                return;
+            }
+        }
+        final OPCUATestServer testServer = new OPCUATestServer(port, analog, status, accumulator);
+        for (int i = 0; i < settingCount; i++) {
+            testServer.apply(settings[i][0], settings[i][1]);
+        }
+        testServer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(testServer::stop));
+        if (sScript != null) {
+            try (Reader script = new FileReader(sScript)) {
+                testServer.runScript(script);
+            }
+        }
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,256 @@
+/* Append-only memory-mapped log of the values read from an OPC-UA server.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUATrafficLog.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Records the values read by a manager (tag, timestamp, value, quality)
+ *  in a memory-mapped file, and replays them later without a server.
+ *  <p>
+ *  File layout: a header (magic, version) followed by records. A record
+ *  starts with its type byte: TAG defines a tag id (int id, short length,
+ *  UTF-8 name), VALUE holds a read (int id, long timestamp, double value,
+ *  int quality). The unused tail of the last mapped region is zero, which
+ *  reads as the END type.
+ *  <p>
+ *  In replay, each tag has its own cursor: the n-th read of a tag returns
+ *  the n-th value recorded for it, so a deterministic model gets the same
+ *  values at every run.
+ */
+class OPCUATrafficLog
+{
+    private static final int MAGIC = 0x4F505243; // "OPRC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final byte END = 0;
+    private static final byte TAG = 1;
+    private static final byte VALUE = 2;
+    private static final int VALUE_SIZE = 1 + 4 + 8 + 8 + 4;
+    private static final long REGION_SIZE = 64L * 1024 * 1024;
+
+    /** A replayed read. */
+    static final class Entry
+    {
+        long timestamp;
+        double value;
+        int quality;
+    }
+
+    /** The positions of the VALUE records of a tag, and the replay cursor. */
+    private static final class Track
+    {
+        long[] positions = new long[16];
+        int size = 0;
+        int cursor = 0;
+
+        void add(long position)
+        {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+    }
+
+    private final File file;
+    private final boolean recording;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    // Recording: tag ids, current region and its offset in the file.
+    private final Map<String, Integer> tagIds = new HashMap<String, Integer>();
+    private MappedByteBuffer region;
+    private long regionStart;
+
+    // Replay: one track per tag, regions covering the file.
+    private final Map<String, Track> tracks = new HashMap<String, Track>();
+    private final List<MappedByteBuffer> regions = new ArrayList<MappedByteBuffer>();
+
+    private OPCUATrafficLog(File file, boolean recording) throws IOException
+    {
+        this.file = file;
+        this.recording = recording;
+        this.raf = new RandomAccessFile(file, recording ? "rw" : "r");
+        this.channel = raf.getChannel();
+    }
+
+    /** Create a new log, replacing any existing file.
+     *  @param file The log file.
+     *  @return The log, ready to record.
+     *  @exception IOException If the file cannot be created.
+     */
+    static OPCUATrafficLog create(File file) throws IOException
+    {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace " + file);
+        }
+        OPCUATrafficLog log = new OPCUATrafficLog(file, true);
+        log.regionStart = 0;
+        log.region = log.channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+        log.region.putInt(MAGIC);
+        log.region.putInt(VERSION);
+        return log;
+    }
+
+    /** Open an existing log for replay.
+     *  @param file The log file.
+     *  @return The log, with the cursor of every tag at its first value.
+     *  @exception IOException If the file cannot be read or is not a log.
+     */
+    static OPCUATrafficLog open(File file) throws IOException
+    {
+        OPCUATrafficLog log = new OPCUATrafficLog(file, false);
+        log.index();
+        return log;
+    }
+
+    /** Append a read to the log.
+     *  @param sTagName OPC-UA node name.
+     *  @param timestamp The value timestamp, in milliseconds since the epoch.
+     *  @param value The value read.
+     *  @param quality The value quality.
+     *  @exception IOException If the file cannot grow.
+     */
+    synchronized void record(String sTagName, long timestamp, double value, int quality) throws IOException
+    {
+        Integer id = tagIds.get(sTagName);
+        if (id == null) {
+            id = tagIds.size();
+            byte[] name = sTagName.getBytes(StandardCharsets.UTF_8);
+            reserve(1 + 4 + 2 + name.length);
+            region.put(TAG);
+            region.putInt(id);
+            region.putShort((short) name.length);
+            region.put(name);
+            tagIds.put(sTagName, id);
+        }
+        reserve(VALUE_SIZE);
+        region.put(VALUE);
+        region.putInt(id);
+        region.putLong(timestamp);
+        region.putDouble(value);
+        region.putInt(quality);
+    }
+
+    /** Return the next recorded read of a tag.
+     *  @param sTagName OPC-UA node name.
+     *  @param entry The entry to be filled.
+     *  @return False if the tag has no more recorded values.
+     */
+    synchronized boolean next(String sTagName, Entry entry)
+    {
+        Track track = tracks.get(sTagName);
+        if (track == null || track.cursor >= track.size) {
+            return false;
+        }
+        long position = track.positions[track.cursor++];
+        MappedByteBuffer buffer = regions.get((int) (position / REGION_SIZE));
+        int offset = (int) (position % REGION_SIZE) + 1 + 4;
+        entry.timestamp = buffer.getLong(offset);
+        entry.value = buffer.getDouble(offset + 8);
+        entry.quality = buffer.getInt(offset + 16);
+        return true;
+    }
+
+    /** Return true if the log was created for recording, false for replay.
+     */
+    boolean isRecording()
+    {
+        return recording;
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    /** Flush the recorded data and close the file.
+     */
+    synchronized void close()
+    {
+        try {
+            if (region != null) {
+                region.force();
+            }
+            channel.close();
+            raf.close();
+        } catch (IOException e) {
+            System.out.println("OPCUATrafficLog::close: Failed closing " + file);
+            e.printStackTrace();
+        }
+        region = null;
+        regions.clear();
+    }
+
+    /** Make room for a record, moving to a new region if needed. Records
+     *  never cross a region boundary; the skipped tail reads as END.
+     */
+    private void reserve(int size) throws IOException
+    {
+        if (region.remaining() < size + 1) {
+            region.force();
+            regionStart += REGION_SIZE;
+            region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, REGION_SIZE);
+        }
+    }
+
+    /** Map the file and build the track of every tag.
+     */
+    private void index() throws IOException
+    {
+        long length = channel.size();
+        for (long start = 0; start < length; start += REGION_SIZE) {
+            regions.add(channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, length - start)));
+        }
+        if (regions.isEmpty() || regions.get(0).getInt(0) != MAGIC || regions.get(0).getInt(4) != VERSION) {
+            throw new IOException(file + " is not an OPC-UA traffic log.");
+        }
+
+        Map<Integer, Track> byId = new HashMap<Integer, Track>();
+        for (int r = 0; r < regions.size(); r++) {
+            MappedByteBuffer buffer = regions.get(r);
+            int offset = r == 0 ? HEADER_SIZE : 0;
+            while (offset < buffer.limit()) {
+                byte type = buffer.get(offset);
+                if (type == TAG) {
+                    int id = buffer.getInt(offset + 1);
+                    int length2 = buffer.getShort(offset + 5);
+                    byte[] name = new byte[length2];
+                    for (int i = 0; i < length2; i++) {
+                        name[i] = buffer.get(offset + 7 + i);
+                    }
+                    Track track = new Track();
+                    byId.put(id, track);
+                    tracks.put(new String(name, StandardCharsets.UTF_8), track);
+                    offset += 7 + length2;
+                } else if (type == VALUE) {
+                    Track track = byId.get(buffer.getInt(offset + 1));
+                    if (track != null) {
+                        track.add(r * REGION_SIZE + offset);
+                    }
+                    offset += VALUE_SIZE;
+                } else {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -25,6 +25,10 @@ import itaipu.gss.framework.OPCUA.OPCUANode;
 import itaipu.gss.framework.exception.AppException;
 import itaipu.gss.framework.log.AppLogger;
 import ptolemy.actor.TypedIOPort;
+import ptolemy.actor.util.Time;
+import ptolemy.data.DoubleToken;
+import ptolemy.data.expr.Parameter;
+import ptolemy.data.expr.StringParameter;
 import ptolemy.data.type.BaseType;
 import ptolemy.kernel.CompositeEntity;
 import ptolemy.kernel.util.Attribute;
@@ -37,6 +41,58 @@ public class OPCUAWrite extends OPCUAClient{
 
     private TypedIOPort input;
 
+    /** How the value is sent: "Synchronous" writes it to the server during
+     *  fire, "Queued" puts it in the manager write queue and returns.
+     */
+    public StringParameter writeMode;
+
+    /** A value is written only if it differs from the last value written
+     *  by more than this amount (0 = no absolute deadband).
+     */
+    public Parameter absoluteDeadband;
+
+    /** A value is written only if it differs from the last value written
+     *  by more than this percentage of the engineering units range (0 = no
+     *  percent deadband), as the OPC-UA PercentDeadband. If both deadbands
+     *  are set, the larger one applies.
+     */
+    public Parameter percentDeadband;
+
+    /** Span (high - low) of the engineering units of the Point, the base
+     *  of percentDeadband. 0 reads it from the EURange property of the
+     *  node at initialize.
+     */
+    public Parameter euRange;
+
+    /** Maximum model time in seconds without a write (0 = no heartbeat).
+     *  The actor asks its director to fire it when it elapses (fireAt,
+     *  e.g. with DE) and writes the last input again, even inside the
+     *  deadband. Only one such request is pending at a time.
+     */
+    public Parameter heartbeatInterval;
+
+    // Handle of the node in the manager, null if not registered.
+    private OPCUATagHandle writeHandle = null;
+    private boolean queued = false;
+    // Last value written and its model time; valid if hasWritten.
+    private boolean hasWritten = false;
+    private double lastWritten = 0.0;
+    private Time lastWriteTime = null;
+    // Last input, written again by the heartbeat.
+    private double lastInput = 0.0;
+    // Input and write of the current firing, committed at postfire.
+    private boolean hasInput = false;
+    private double firedInput = 0.0;
+    private boolean hasFiredWrite = false;
+    private double firedWritten = 0.0;
+    private Time firedWriteTime = null;
+    // Time of the heartbeat firing requested from the director, if any.
+    private Time nextHeartbeat = null;
+    private double dAbsoluteDeadband = 0.0;
+    private double dPercentDeadband = 0.0;
+    private double dEURange = 0.0;
+    private double dHeartbeat = 0.0;
+
     /** Construct an actor with the given container and name.
      *  @param container The container.
      *  @param name The name of this actor.
@@ -55,6 +111,26 @@ public class OPCUAWrite extends OPCUAClient{
         input.setTypeEquals(BaseType.DOUBLE);
         input.setInput(true);
 
+        writeMode = new StringParameter(this, "writeMode");
+        writeMode.setExpression("Synchronous");
+        writeMode.addChoice("Synchronous");
+        writeMode.addChoice("Queued");
+
+        absoluteDeadband = new Parameter(this, "absoluteDeadband");
+        absoluteDeadband.setTypeEquals(BaseType.DOUBLE);
+        absoluteDeadband.setExpression("0.0");
+
+        percentDeadband = new Parameter(this, "percentDeadband");
+        percentDeadband.setTypeEquals(BaseType.DOUBLE);
+        percentDeadband.setExpression("0.0");
+
+        euRange = new Parameter(this, "euRange");
+        euRange.setTypeEquals(BaseType.DOUBLE);
+        euRange.setExpression("0.0");
+
+        heartbeatInterval = new Parameter(this, "heartbeatInterval");
+        heartbeatInterval.setTypeEquals(BaseType.DOUBLE);
+        heartbeatInterval.setExpression("0.0");
     }
 
 
@@ -67,23 +143,162 @@ public class OPCUAWrite extends OPCUAClient{
         return newObject;
     }
     
-    /** Writes the input value to the  corresponding node in the OPC-UA server.
+    /** Registers the node of this writer in the manager, which checks it
+     *  against the server at initialize.
+     *  @exception IllegalActionException If the superclass throws it.
+     */
+    @Override
+    public void preinitialize() throws IllegalActionException {
+        super.preinitialize();
+
+        writeHandle = null;
+        queued = writeMode.stringValue().equals("Queued");
+        hasWritten = false;
+        hasInput = false;
+        hasFiredWrite = false;
+        nextHeartbeat = null;
+        dAbsoluteDeadband = ((DoubleToken) absoluteDeadband.getToken()).doubleValue();
+        dPercentDeadband = ((DoubleToken) percentDeadband.getToken()).doubleValue();
+        dEURange = ((DoubleToken) euRange.getToken()).doubleValue();
+        dHeartbeat = ((DoubleToken) heartbeatInterval.getToken()).doubleValue();
+        if (dAbsoluteDeadband < 0.0 || dPercentDeadband < 0.0 || dEURange < 0.0 || dHeartbeat < 0.0) {
+            throw new IllegalActionException(this, "absoluteDeadband, percentDeadband, euRange and heartbeatInterval must not be negative.");
+        }
+        OPCUAConnectionManager manager = getMyManager();
+        String tagName = getTagName();
+        if (manager != null && tagName != null && !tagName.isEmpty()) {
+            writeHandle = manager.registerWriter(tagName, getDataType());
+        }
+    }
+
+    /** Reads the EURange of the Point if percentDeadband needs it and
+     *  euRange is not set.
+     *  @exception IllegalActionException If the EURange cannot be read.
+     */
+    @Override
+    public void initialize() throws IllegalActionException {
+        super.initialize();
+
+        if (dPercentDeadband > 0.0 && dEURange == 0.0) {
+            OPCUAConnectionManager manager = getMyManager();
+            if (manager == null) {
+                throw new IllegalActionException(this, "Parameter OPCUAConnectionManager is not defined.");
+            }
+            try {
+                dEURange = manager.readEURange(getTagName());
+            } catch (IllegalActionException e) {
+                throw new IllegalActionException(this, e,
+                        "percentDeadband needs the EURange of the Point. Tip: set the euRange parameter.");
+            }
+        }
+    }
+
+    /** Writes the input value to the  corresponding node in the OPC-UA server,
+     *  unless it is within the deadband of the last value written and the
+     *  heartbeat interval has not elapsed. A firing without input, asked
+     *  for by the heartbeat, writes the last input again. The input and the
+     *  value written are recorded at postfire.
      *  @exception IllegalActionException If the OPC-UA server query fails.
      */    
     @Override
     public void fire() throws IllegalActionException {
         super.fire();
 
+        hasInput = false;
+        hasFiredWrite = false;
+        Time now = getDirector().getModelTime();
+        boolean heartbeat = hasWritten && dHeartbeat > 0.0
+                && now.subtract(lastWriteTime).getDoubleValue() >= dHeartbeat;
+        double value;
         if (input.hasToken(0)) {
             ScalarToken in = (ScalarToken) input.get(0);
-            try {
-                getMyManager().writeOpcValue(getTagName(), getDataType(), in.doubleValue());
-            } catch (AppException e) {
-                e.printStackTrace();
-                throw new IllegalActionException(this,
-                    "Failed writing value to OPC-UA server. Tip: Maybe the Manager is not connected, or parameters Point/DataType are not defined.");
+            value = in.doubleValue();
+            hasInput = true;
+            firedInput = value;
+            if (!heartbeat && !mustWrite(value)) {
+                return;
             }
+        } else if (heartbeat) {
+            value = lastInput;
+        } else {
+            return;
+        }
+        OPCUAConnectionManager manager = getMyManager();
+        try {
+            if (writeHandle == null) {
+                manager.writeOpcValue(getTagName(), getDataType(), value);
+            } else if (queued) {
+                manager.queueOpcValue(writeHandle, value);
+            } else {
+                manager.writeOpcValue(writeHandle, value);
+            }
+            hasFiredWrite = true;
+            firedWritten = value;
+            firedWriteTime = now;
+        } catch (AppException e) {
+            e.printStackTrace();
+            throw new IllegalActionException(this,
+                "Failed writing value to OPC-UA server. Tip: Maybe the Manager is not connected, or parameters Point/DataType are not defined.");
+        }
+    }
+
+    /** Records the input and the value written by fire, and asks the
+     *  director to fire the actor when the heartbeat is due, unless a
+     *  firing is already pending for that time or earlier.
+     *  @return True if execution can continue into the next iteration.
+     *  @exception IllegalActionException If the superclass throws it.
+     */
+    @Override
+    public boolean postfire() throws IllegalActionException {
+        if (hasInput) {
+            lastInput = firedInput;
+        }
+        if (hasFiredWrite) {
+            hasWritten = true;
+            lastWritten = firedWritten;
+            lastWriteTime = firedWriteTime;
+        }
+        hasInput = false;
+        hasFiredWrite = false;
+        if (dHeartbeat > 0.0 && hasWritten) {
+            Time due = lastWriteTime.add(dHeartbeat);
+            Time now = getDirector().getModelTime();
+            // A pending firing earlier than due finds the heartbeat not due
+            // yet, and asks again from there.
+            if (nextHeartbeat == null || nextHeartbeat.compareTo(now) <= 0 || nextHeartbeat.compareTo(due) > 0) {
+                nextHeartbeat = getDirector().fireAt(this, due);
+            }
+        }
+        return super.postfire();
+    }
+
+    /** Releases the handle obtained from the manager at preinitialize.
+     *  @exception IllegalActionException If the superclass throws it.
+     */
+    @Override
+    public void wrapup() throws IllegalActionException {
+        super.wrapup();
+        writeHandle = null;
+        hasWritten = false;
+        lastWriteTime = null;
+        nextHeartbeat = null;
+    }
+
+    /** Return true if the value moved out of the deadband of the last value
+     *  written. With no deadband set, every value is written. A queued
+     *  value dropped by the write queue (DropOldest) was never written, so
+     *  the next value is written whatever the deadband.
+     */
+    private boolean mustWrite(double value) {
+        if (!hasWritten || (queued && writeHandle != null && writeHandle.writeDropped)) {
+            return true;
+        }
+        double deadband = Math.max(dAbsoluteDeadband, dEURange * dPercentDeadband / 100.0);
+        if (deadband <= 0.0) {
+            return true;
         }
+        // NaN differences are never inside the deadband.
+        return !(Math.abs(value - lastWritten) <= deadband);
     }
 
 }
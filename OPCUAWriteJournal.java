@@ -0,0 +1,319 @@
+/* Append-only journal of the OPC-UA writes that could not be sent to the server.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUAWriteJournal.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import itaipu.gss.framework.OPCUA.DataType;
+import itaipu.gss.framework.OPCUA.OPCUANode;
+import itaipu.gss.framework.OPCUA.OPCUAValue;
+
+/** Stores the writes of a manager while the server cannot be reached, and
+ *  gives them back in order when it can.
+ *  <p>
+ *  File layout: a header (magic, version) followed by one record per
+ *  value written: tag name and data type name (short length, UTF-8),
+ *  long timestamp, double value. A record cut by a crash at the end of
+ *  the file is ignored. The journal survives the run: writes left in it
+ *  are sent by the next run using the same file.
+ *  <p>
+ *  Only the last value of each node (tag name and data type) is sent back
+ *  (per-node compaction), in the order of these last writes. The file is
+ *  compacted the same way when it reaches its maximum size, unless it is
+ *  being drained (the drainer holds byte positions in the file); if it is
+ *  still full, append() fails.
+ */
+class OPCUAWriteJournal
+{
+    private static final int MAGIC = 0x4F50574A; // "OPWJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    /** A journaled write. */
+    static final class Entry
+    {
+        final String sTagName;
+        final DataType tType;
+        final long timestamp;
+        final double value;
+
+        Entry(String sTagName, DataType tType, long timestamp, double value)
+        {
+            this.sTagName = sTagName;
+            this.tType = tType;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+
+    /** Held by the thread draining the journal, so that there is only one.
+     *  While it is held, append() does not compact the file.
+     */
+    final ReentrantLock drainLock = new ReentrantLock();
+
+    private final File file;
+    private final long maxBytes;
+    private DataOutputStream out;
+    private long size;
+    private boolean closed = false;
+
+    private OPCUAWriteJournal(File file, long maxBytes)
+    {
+        this.file = file;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Open a journal, creating the file if it does not exist. Writes
+     *  left in an existing file are kept.
+     *  @param file The journal file.
+     *  @param maxBytes The maximum size of the file.
+     *  @return The journal.
+     *  @exception IOException If the file cannot be created or is not a journal.
+     */
+    static OPCUAWriteJournal open(File file, long maxBytes) throws IOException
+    {
+        OPCUAWriteJournal journal = new OPCUAWriteJournal(file, maxBytes);
+        if (file.exists() && file.length() > 0) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                if (file.length() < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException(file + " is not a write journal.");
+                }
+            }
+            // Drop a record cut by a crash, so that appends start at a record boundary.
+            journal.size = file.length();
+            journal.rewrite(journal.readCompacted(journal.size), journal.size);
+        } else {
+            journal.rewrite(new ArrayList<Entry>(), 0);
+        }
+        return journal;
+    }
+
+    /** Append writes to the journal.
+     *  @param writeMap The values, indexed by node.
+     *  @exception IOException If the journal is full or cannot be written.
+     */
+    synchronized void append(Map<OPCUANode, OPCUAValue> writeMap) throws IOException
+    {
+        if (closed) {
+            throw new IOException("Write journal " + file + " is closed.");
+        }
+        long bytes = 0;
+        for (OPCUANode node : writeMap.keySet()) {
+            bytes += recordSize(node.getTagName(), node.getDataType());
+        }
+        if (size + bytes > maxBytes) {
+            // A drainer replaces the records before its position later:
+            // the file must not move under it.
+            if (!drainLock.isLocked() || drainLock.isHeldByCurrentThread()) {
+                rewrite(readCompacted(size), size);
+            }
+            if (size + bytes > maxBytes) {
+                throw new IOException("Write journal " + file + " is full (" + size + " bytes).");
+            }
+        }
+        for (Map.Entry<OPCUANode, OPCUAValue> entry : writeMap.entrySet()) {
+            Date timestamp = entry.getValue().getTimestamp();
+            writeRecord(out, new Entry(entry.getKey().getTagName(), entry.getKey().getDataType(),
+                    timestamp != null ? timestamp.getTime() : System.currentTimeMillis(), entry.getValue().getValue()));
+        }
+        out.flush();
+        size += bytes;
+    }
+
+    /** Return true if no write is waiting in the journal. A closed
+     *  journal is empty: what it holds is for the next run.
+     */
+    synchronized boolean isEmpty()
+    {
+        return closed || size <= HEADER_SIZE;
+    }
+
+    /** Return the current size of the file, which marks the writes
+     *  journaled so far.
+     */
+    synchronized long getPosition()
+    {
+        return size;
+    }
+
+    /** Return the last value of each node journaled before a position,
+     *  in the order of these last writes.
+     *  @param position A position returned by getPosition().
+     *  @exception IOException If the file cannot be read.
+     */
+    synchronized List<Entry> readCompacted(long position) throws IOException
+    {
+        if (out != null) {
+            out.flush();
+        }
+        // Keyed on tag name and data type, as the nodes of the manager.
+        LinkedHashMap<String, Entry> last = new LinkedHashMap<String, Entry>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            in.skipBytes(HEADER_SIZE);
+            long read = HEADER_SIZE;
+            while (read < position) {
+                Entry entry;
+                try {
+                    entry = readRecord(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                read += recordSize(entry.sTagName, entry.tType);
+                if (read > position) {
+                    break;
+                }
+                // Moved to the end: ordered by the last write of each node.
+                String sKey = entry.sTagName + "|" + entry.tType;
+                last.remove(sKey);
+                last.put(sKey, entry);
+            }
+        }
+        return new ArrayList<Entry>(last.values());
+    }
+
+    /** Replace the writes journaled before a position by some entries,
+     *  keeping the writes journaled after it. Used once the entries read
+     *  by readCompacted() were sent, to keep only those that were not.
+     *  @param remaining The entries to keep, in order.
+     *  @param position The position given to readCompacted().
+     *  @exception IOException If the file cannot be written.
+     */
+    synchronized void replace(List<Entry> remaining, long position) throws IOException
+    {
+        if (closed) {
+            throw new IOException("Write journal " + file + " is closed.");
+        }
+        rewrite(remaining, position);
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    /** Close the file. Writes still journaled stay in it.
+     */
+    synchronized void close()
+    {
+        closed = true;
+        closeFile();
+    }
+
+    private void closeFile()
+    {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            out = null;
+        }
+    }
+
+    /** Write a new file made of some entries and the records after a
+     *  position of the current file, and replace the current file with it.
+     */
+    private void rewrite(List<Entry> entries, long position) throws IOException
+    {
+        if (out != null) {
+            out.flush();
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        long newSize = HEADER_SIZE;
+        try (DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            tempOut.writeInt(MAGIC);
+            tempOut.writeInt(VERSION);
+            for (Entry entry : entries) {
+                writeRecord(tempOut, entry);
+                newSize += recordSize(entry.sTagName, entry.tType);
+            }
+            if (position > 0 && position < size) {
+                try (InputStream in = new FileInputStream(file)) {
+                    long skipped = 0;
+                    while (skipped < position) {
+                        skipped += in.skip(position - skipped);
+                    }
+                    byte[] buffer = new byte[65536];
+                    long left = size - position;
+                    while (left > 0) {
+                        int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                        if (n < 0) {
+                            break;
+                        }
+                        tempOut.write(buffer, 0, n);
+                        left -= n;
+                        newSize += n;
+                    }
+                }
+            }
+        }
+        closeFile();
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        size = newSize;
+    }
+
+    private static int recordSize(String sTagName, DataType tType)
+    {
+        return 2 + sTagName.getBytes(StandardCharsets.UTF_8).length
+                + 2 + tType.name().getBytes(StandardCharsets.UTF_8).length + 8 + 8;
+    }
+
+    private static void writeRecord(DataOutputStream out, Entry entry) throws IOException
+    {
+        writeString(out, entry.sTagName);
+        writeString(out, entry.tType.name());
+        out.writeLong(entry.timestamp);
+        out.writeDouble(entry.value);
+    }
+
+    private static Entry readRecord(DataInputStream in) throws IOException
+    {
+        String sTagName = readString(in);
+        String sType = readString(in);
+        long timestamp = in.readLong();
+        double value = in.readDouble();
+        return new Entry(sTagName, DataType.valueOf(sType), timestamp, value);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
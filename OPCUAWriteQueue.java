@@ -0,0 +1,285 @@
+/* Bounded queue of OPC-UA writes flushed in batches by a background thread.
+
+ build with: javac -source 1.8 -target 1.8 -cp "../../..;../../../lib/eclipse-milo/*;../../../lib/GSSFramework/*" -g -O ./OPCUAWriteQueue.java
+
+ Copyright (c) 2023 Itaipu Binacional - OP.DT/GSS
+
+ This is a helper class of OPCUAConnectionManager, it is not an actor and
+ must not be included in the "Itaipu" library.
+
+ */
+package ptolemy.actor.lib;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import itaipu.gss.framework.OPCUA.OPCUANode;
+import itaipu.gss.framework.OPCUA.OPCUAValue;
+import ptolemy.kernel.util.IllegalActionException;
+
+/** The write queue of a manager. Writers put values in the queue and
+ *  return immediately; a flusher thread waits for a flush window, takes
+ *  everything queued and sends it with multi-node writeData calls. Within
+ *  a window only the last value written to each node is kept, so the
+ *  capacity is a number of distinct nodes.
+ *  <p>
+ *  When the queue is full the configured policy applies: BLOCK waits for
+ *  the next flush, DROP_OLDEST discards the oldest pending node and flags
+ *  its writer handle (writeDropped), FAIL throws an exception to the
+ *  writer.
+ *  <p>
+ *  The values of a failed flush are queued again, behind nothing but the
+ *  newer values of the same nodes, and sent at the next window (at least
+ *  RETRY_DELAY_MILLIS later). close() reports the values the last flush
+ *  could not write; failures that were retried successfully are logged.
+ */
+class OPCUAWriteQueue
+{
+    enum FullPolicy { BLOCK, DROP_OLDEST, FAIL }
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private static final class PendingWrite
+    {
+        final OPCUANode node;
+        // The writer of the last value, told if the value is dropped.
+        OPCUATagHandle handle;
+        double value;
+        long timestamp;
+
+        PendingWrite(OPCUATagHandle handle, double value, long timestamp)
+        {
+            this.node = handle.node;
+            this.handle = handle;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final OPCUAConnectionManager manager;
+    private final int capacity;
+    private final long flushIntervalMillis;
+    private final FullPolicy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private LinkedHashMap<String, PendingWrite> pending = new LinkedHashMap<String, PendingWrite>();
+    private Exception flushError = null;
+    // Number of failed flushes, and of values the last flush could not write.
+    private long failedFlushes = 0;
+    private int unwritten = 0;
+    // Whether the last flush failed, so that retries are logged once.
+    private boolean retrying = false;
+    private long dropped = 0;
+    private boolean running = true;
+    private final Thread flusher;
+
+    OPCUAWriteQueue(OPCUAConnectionManager manager, int capacity, long flushIntervalMillis, FullPolicy policy)
+    {
+        this.manager = manager;
+        this.capacity = capacity;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.policy = policy;
+
+        flusher = new Thread(this::run, "OPCUAWriteQueue-" + manager.getName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /** Queue a write of the specified node.
+     *  @param handle The writer handle of the node.
+     *  @param value The value to be written.
+     *  @exception IllegalActionException If the queue is full with the
+     *   FAIL policy, or the writer is interrupted.
+     */
+    void offer(OPCUATagHandle handle, double value) throws IllegalActionException
+    {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            PendingWrite write = pending.get(handle.sTagName);
+            handle.writeDropped = false;
+            if (write != null) {
+                write.handle = handle;
+                write.value = value;
+                write.timestamp = now;
+                return;
+            }
+            while (pending.size() >= capacity) {
+                switch (policy) {
+                case BLOCK:
+                    notFull.await();
+                    break;
+                case DROP_OLDEST:
+                    Iterator<PendingWrite> eldest = pending.values().iterator();
+                    eldest.next().handle.writeDropped = true;
+                    eldest.remove();
+                    dropped++;
+                    break;
+                default:
+                    throw new IllegalActionException(manager,
+                            "Write queue is full (" + capacity + " nodes pending).");
+                }
+            }
+            pending.put(handle.sTagName, new PendingWrite(handle, value, now));
+            notEmpty.signal();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalActionException(manager, e, "Interrupted while waiting for the write queue.");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Return the number of writes discarded by the DROP_OLDEST policy.
+     */
+    long getDropped()
+    {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stop the flusher and write everything still pending.
+     *  @exception IllegalActionException If the last flush failed: its
+     *   values are lost.
+     */
+    void close() throws IllegalActionException
+    {
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            if (dropped > 0) {
+                System.out.println("OPCUAWriteQueue::close: " + dropped + " writes were dropped (queue full).");
+            }
+            if (failedFlushes > 0) {
+                System.out.println("OPCUAWriteQueue::close: " + failedFlushes + " flushes failed and were retried.");
+            }
+            if (unwritten > 0) {
+                throw new IllegalActionException(manager, flushError,
+                        "Failed writing " + unwritten + " queued values to server.");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run()
+    {
+        boolean failed = false;
+        while (true) {
+            boolean window;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && running) {
+                    notEmpty.await();
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                window = running;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            if (window) {
+                // Flush window: let further values of the same nodes coalesce.
+                try {
+                    Thread.sleep(failed ? Math.max(flushIntervalMillis, RETRY_DELAY_MILLIS) : flushIntervalMillis);
+                } catch (InterruptedException e) {
+                    // Flush what we have and leave at the next loop.
+                }
+            }
+            failed = !flush(window);
+        }
+    }
+
+    /** Send everything queued.
+     *  @param requeue Whether values that cannot be written are queued
+     *   again; when closing they are counted as unwritten.
+     *  @return False if a write failed.
+     */
+    private boolean flush(boolean requeue)
+    {
+        LinkedHashMap<String, PendingWrite> batch;
+        lock.lock();
+        try {
+            batch = pending;
+            pending = new LinkedHashMap<String, PendingWrite>();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        int written = 0;
+        try {
+            int chunk = manager.getWriteBatchSize();
+            Map<OPCUANode, OPCUAValue> writeMap = new LinkedHashMap<OPCUANode, OPCUAValue>();
+            for (PendingWrite write : batch.values()) {
+                writeMap.put(write.node, new OPCUAValue(new Date(write.timestamp), write.value, 0));
+                if (writeMap.size() >= chunk) {
+                    manager.writeOpcNodes(writeMap);
+                    written += writeMap.size();
+                    writeMap.clear();
+                }
+            }
+            if (!writeMap.isEmpty()) {
+                manager.writeOpcNodes(writeMap);
+            }
+            retrying = false;
+            return true;
+        } catch (Exception e) {
+            // The chunks written before the failure are not sent again.
+            Iterator<PendingWrite> sent = batch.values().iterator();
+            for (int i = 0; i < written; i++) {
+                sent.next();
+                sent.remove();
+            }
+            lock.lock();
+            try {
+                if (!retrying || !requeue) {
+                    System.out.println("OPCUAWriteQueue::flush: Failed writing " + batch.size() + " nodes"
+                            + (requeue ? ", retrying." : "."));
+                    e.printStackTrace();
+                }
+                retrying = true;
+                flushError = e;
+                failedFlushes++;
+                if (requeue) {
+                    // Newer values queued meanwhile replace the failed ones.
+                    for (String sTagName : pending.keySet()) {
+                        batch.remove(sTagName);
+                    }
+                    batch.putAll(pending);
+                    pending = batch;
+                    notEmpty.signal();
+                } else {
+                    unwritten += batch.size();
+                }
+            } finally {
+                lock.unlock();
+            }
+            return false;
+        }
+    }
+}